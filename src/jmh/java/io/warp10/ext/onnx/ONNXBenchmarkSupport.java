@@ -0,0 +1,72 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import io.warp10.WarpConfig;
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.WarpScriptStack;
+
+public class ONNXBenchmarkSupport {
+
+  private static boolean initialized = false;
+
+  /**
+   * Initialize the Warp 10 configuration, must be called before the extension is first used
+   */
+  public static synchronized void init() throws IOException {
+    if (initialized) {
+      return;
+    }
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+    initialized = true;
+  }
+
+  public static WarpScriptStack stack() throws IOException {
+    init();
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null);
+    stack.maxLimits();
+    return stack;
+  }
+
+  public static byte[] model(String name) {
+    if (ONNXModels.MLP.equals(name)) {
+      return ONNXModels.mlp(64, 128, 8);
+    } else if (ONNXModels.CONV1D.equals(name)) {
+      return ONNXModels.conv1d(4, 16, 5);
+    } else if (ONNXModels.LSTM.equals(name)) {
+      return ONNXModels.lstm(4, 32);
+    } else {
+      throw new IllegalArgumentException("Unknown model " + name);
+    }
+  }
+
+  /**
+   * Shape of an input of the given model holding about 'size' values
+   */
+  public static long[] inputShape(String name, int size) {
+    if (ONNXModels.MLP.equals(name)) {
+      return new long[] { Math.max(1, size / 64), 64 };
+    } else if (ONNXModels.CONV1D.equals(name)) {
+      return new long[] { 1, 4, Math.max(5, size / 4) };
+    } else {
+      return new long[] { 1, Math.max(1, size / 4), 4 };
+    }
+  }
+}
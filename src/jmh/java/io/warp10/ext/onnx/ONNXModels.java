@@ -0,0 +1,210 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Small ONNX models used by the benchmarks, serialized directly in the protobuf wire format
+ * so the benchmarks need neither model files nor a protobuf dependency.
+ *
+ * All models have FLOAT inputs and outputs with a dynamic batch dimension 'N'.
+ */
+public class ONNXModels {
+
+  public static final String MLP = "MLP";
+  public static final String CONV1D = "CONV1D";
+  public static final String LSTM = "LSTM";
+
+  private static final int ELEM_FLOAT = 1;
+
+  private static final int ATTR_INT = 2;
+  private static final int ATTR_INTS = 7;
+
+  private static final int OPSET = 13;
+
+  /**
+   * Minimal protobuf message writer
+   */
+  private static class Message {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    private void varint(long value) {
+      while (0L != (value & ~0x7FL)) {
+        out.write((int) ((value & 0x7FL) | 0x80L));
+        value >>>= 7;
+      }
+      out.write((int) value);
+    }
+
+    private Message varint(int field, long value) {
+      varint((field << 3) | 0);
+      varint(value);
+      return this;
+    }
+
+    private Message bytes(int field, byte[] value) {
+      varint((field << 3) | 2);
+      varint(value.length);
+      out.write(value, 0, value.length);
+      return this;
+    }
+
+    private Message string(int field, String value) {
+      return bytes(field, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Message message(int field, Message value) {
+      return bytes(field, value.toByteArray());
+    }
+
+    private byte[] toByteArray() {
+      return out.toByteArray();
+    }
+  }
+
+  /**
+   * Multi layer perceptron, X [N,features] -> Y [N,outputs]
+   */
+  public static byte[] mlp(int features, int hidden, int outputs) {
+    Random random = new Random(42L);
+    Message graph = new Message();
+
+    graph.message(1, node("MatMul", new String[] { "X", "W1" }, new String[] { "H1" }));
+    graph.message(1, node("Add", new String[] { "H1", "B1" }, new String[] { "H2" }));
+    graph.message(1, node("Relu", new String[] { "H2" }, new String[] { "H" }));
+    graph.message(1, node("MatMul", new String[] { "H", "W2" }, new String[] { "O" }));
+    graph.message(1, node("Add", new String[] { "O", "B2" }, new String[] { "Y" }));
+    graph.string(2, MLP);
+    graph.message(5, initializer("W1", random, features, hidden));
+    graph.message(5, initializer("B1", random, hidden));
+    graph.message(5, initializer("W2", random, hidden, outputs));
+    graph.message(5, initializer("B2", random, outputs));
+    graph.message(11, valueInfo("X", "N", features));
+    graph.message(12, valueInfo("Y", "N", outputs));
+
+    return model(graph);
+  }
+
+  /**
+   * One dimensional convolution followed by a ReLU, X [N,channels,T] -> Y [N,filters,T-kernel+1]
+   */
+  public static byte[] conv1d(int channels, int filters, int kernel) {
+    Random random = new Random(42L);
+    Message graph = new Message();
+
+    graph.message(1, node("Conv", new String[] { "X", "W", "B" }, new String[] { "C" }));
+    graph.message(1, node("Relu", new String[] { "C" }, new String[] { "Y" }));
+    graph.string(2, CONV1D);
+    graph.message(5, initializer("W", random, filters, channels, kernel));
+    graph.message(5, initializer("B", random, filters));
+    graph.message(11, valueInfo("X", "N", channels, "T"));
+    graph.message(12, valueInfo("Y", "N", filters, "T'"));
+
+    return model(graph);
+  }
+
+  /**
+   * Single layer LSTM, X [N,T,features] -> Y [T,1,N,hidden]. The batch first input is transposed
+   * as the CPU provider only supports sequence first recurrent operators.
+   */
+  public static byte[] lstm(int features, int hidden) {
+    Random random = new Random(42L);
+    Message graph = new Message();
+
+    Message perm = new Message().string(1, "perm").varint(8, 1).varint(8, 0).varint(8, 2).varint(20, ATTR_INTS);
+
+    graph.message(1, node("Transpose", new String[] { "X" }, new String[] { "XT" }, perm));
+    graph.message(1, node("LSTM", new String[] { "XT", "W", "R", "B" }, new String[] { "Y" }, new Message().string(1, "hidden_size").varint(3, hidden).varint(20, ATTR_INT)));
+    graph.string(2, LSTM);
+    graph.message(5, initializer("W", random, 1, 4 * hidden, features));
+    graph.message(5, initializer("R", random, 1, 4 * hidden, hidden));
+    graph.message(5, initializer("B", random, 1, 8 * hidden));
+    graph.message(11, valueInfo("X", "N", "T", features));
+    graph.message(12, valueInfo("Y", "T", 1, "N", hidden));
+
+    return model(graph);
+  }
+
+  private static byte[] model(Message graph) {
+    Message opset = new Message().string(1, "").varint(2, OPSET);
+    // ir_version 7, producer_name, graph, opset_import
+    return new Message().varint(1, 7).string(2, "warp10-ext-onnx").message(7, graph).message(8, opset).toByteArray();
+  }
+
+  private static Message node(String op, String[] inputs, String[] outputs, Message... attributes) {
+    Message node = new Message();
+    for (String input: inputs) {
+      node.string(1, input);
+    }
+    for (String output: outputs) {
+      node.string(2, output);
+    }
+    node.string(4, op);
+    for (Message attribute: attributes) {
+      node.message(5, attribute);
+    }
+    return node;
+  }
+
+  /**
+   * FLOAT tensor with random content
+   */
+  private static Message initializer(String name, Random random, long... dims) {
+    Message tensor = new Message();
+    long size = 1L;
+    for (long dim: dims) {
+      tensor.varint(1, dim);
+      size *= dim;
+    }
+    tensor.varint(2, ELEM_FLOAT);
+    tensor.string(8, name);
+
+    byte[] raw = new byte[(int) size * 4];
+    for (int i = 0; i < size; i++) {
+      int bits = Float.floatToIntBits((float) (random.nextGaussian() * 0.1D));
+      // raw_data is little endian
+      for (int b = 0; b < 4; b++) {
+        raw[i * 4 + b] = (byte) (bits >>> (8 * b));
+      }
+    }
+    tensor.bytes(9, raw);
+
+    return tensor;
+  }
+
+  /**
+   * FLOAT tensor value info, dimensions are either fixed (Number) or symbolic (String)
+   */
+  private static Message valueInfo(String name, Object... dims) {
+    Message shape = new Message();
+    for (Object dim: dims) {
+      Message d = new Message();
+      if (dim instanceof String) {
+        d.string(2, (String) dim);
+      } else {
+        d.varint(1, ((Number) dim).longValue());
+      }
+      shape.message(1, d);
+    }
+    Message tensorType = new Message().varint(1, ELEM_FLOAT).message(2, shape);
+    Message type = new Message().message(1, tensorType);
+    return new Message().string(1, name).message(2, type);
+  }
+}
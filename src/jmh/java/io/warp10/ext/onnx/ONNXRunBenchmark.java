@@ -0,0 +1,111 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.Result;
+import io.warp10.script.WarpScriptStack;
+
+/**
+ * Inference through ONNX.RUN per model and output format, and conversion of outputs of several sizes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ONNXRunBenchmark {
+
+  @Param({ ONNXModels.MLP, ONNXModels.CONV1D, ONNXModels.LSTM })
+  public String model;
+
+  @Param({ ONNXUtils.FORMAT_LIST, ONNXUtils.FORMAT_VECTOR, ONNXUtils.FORMAT_BYTES })
+  public String format;
+
+  @Param({ "256", "65536" })
+  public int size;
+
+  private WarpScriptStack stack;
+  private OrtSession session;
+  private OnnxTensor input;
+  private ONNXRUN function;
+  private Map<Object,Object> params;
+
+  // ONNX.RUN only accepts sessions bound in the current scope
+  private ONNXScope scope;
+
+  // Output of a run kept open to benchmark the conversion alone
+  private Result result;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    stack = ONNXBenchmarkSupport.stack();
+    session = ONNXWarpScriptExtension.getEnvironment().createSession(ONNXBenchmarkSupport.model(model));
+    scope = ONNXScope.open(stack);
+    scope.bind(session, null, ONNXBindingPlan.compile("ONNX.RUN", session), null);
+
+    ONNXTensorBuilder builder = new ONNXTensorBuilder(OnnxJavaType.FLOAT, ONNXBenchmarkSupport.inputShape(model, size));
+    for (int i = 0; i < builder.size(); i++) {
+      builder.set(i, Math.sin(i));
+    }
+    input = builder.build();
+
+    function = new ONNXRUN("ONNX.RUN");
+    params = new HashMap<Object,Object>();
+    params.put(ONNXRUN.KEY_INPUTS, Collections.singletonMap("X", input));
+    params.put(ONNXOutputSpec.KEY_FORMAT, format);
+
+    result = session.run(Collections.singletonMap("X", input));
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() throws Exception {
+    result.close();
+    scope.close(stack);
+    input.close();
+    session.close();
+  }
+
+  @Benchmark
+  public Object run() throws Exception {
+    stack.push(session);
+    stack.push(params);
+    function.apply(stack);
+    return stack.pop();
+  }
+
+  @Benchmark
+  public Object convert() throws Exception {
+    return ONNXUtils.fromONNXValue(result.get(0), "Y", format);
+  }
+}
@@ -0,0 +1,81 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ai.onnxruntime.OrtSession;
+import io.warp10.ext.onnx.ONNXSessionCache.CachedSession;
+
+/**
+ * Creation of a session from scratch versus acquisition of a cached session
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ONNXSessionBenchmark {
+
+  @Param({ ONNXModels.MLP, ONNXModels.CONV1D, ONNXModels.LSTM })
+  public String model;
+
+  private byte[] bytes;
+  private ONNXSessionCache cache;
+  private ONNXSessionCache.Loader loader;
+
+  @Setup
+  public void setup() throws Exception {
+    ONNXBenchmarkSupport.init();
+    bytes = ONNXBenchmarkSupport.model(model);
+    cache = ONNXWarpScriptExtension.getSessionCache();
+    loader = new ONNXSessionCache.Loader() {
+      @Override
+      public OrtSession load() throws ai.onnxruntime.OrtException {
+        return ONNXWarpScriptExtension.getEnvironment().createSession(bytes);
+      }
+      @Override
+      public long getSize() {
+        return bytes.length;
+      }
+    };
+  }
+
+  @Benchmark
+  public OrtSession create() throws Exception {
+    OrtSession session = ONNXWarpScriptExtension.getEnvironment().createSession(bytes);
+    session.close();
+    return session;
+  }
+
+  @Benchmark
+  public OrtSession cached() throws Exception {
+    CachedSession cs = cache.acquire("benchmark:" + model, loader);
+    try {
+      return cs.getSession();
+    } finally {
+      cache.release(cs);
+    }
+  }
+}
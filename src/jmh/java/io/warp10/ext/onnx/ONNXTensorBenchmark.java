@@ -0,0 +1,101 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import io.warp10.script.WarpScriptStack;
+
+/**
+ * Creation of tensors by ONNX.TENSOR, per type and input form
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ONNXTensorBenchmark {
+
+  @Param({ "FLOAT", "DOUBLE", "INT8", "INT16", "INT32", "INT64", "BOOL" })
+  public String type;
+
+  @Param({ "LIST", "BYTES" })
+  public String form;
+
+  @Param({ "64", "4096", "262144" })
+  public int size;
+
+  private WarpScriptStack stack;
+  private ONNXTENSOR function;
+  private Object data;
+  private List<Object> shape;
+
+  @Setup
+  public void setup() throws Exception {
+    stack = ONNXBenchmarkSupport.stack();
+    function = new ONNXTENSOR("ONNX.TENSOR");
+
+    OnnxJavaType t = OnnxJavaType.valueOf(type);
+
+    if ("BYTES".equals(form)) {
+      ByteBuffer bb = ByteBuffer.allocate(size * t.size).order(ByteOrder.nativeOrder());
+      for (int i = 0; i < size * t.size; i++) {
+        bb.put(i, (byte) (OnnxJavaType.BOOL == t ? i & 1 : i));
+      }
+      data = bb.array();
+    } else {
+      List<Object> values = new ArrayList<Object>(size);
+      for (int i = 0; i < size; i++) {
+        if (OnnxJavaType.BOOL == t) {
+          values.add(0 == i % 2);
+        } else if (OnnxJavaType.FLOAT == t || OnnxJavaType.DOUBLE == t) {
+          values.add((double) i);
+        } else {
+          values.add((long) (i % 100));
+        }
+      }
+      data = values;
+    }
+
+    shape = new ArrayList<Object>(Arrays.asList((Object) (long) size));
+  }
+
+  @Benchmark
+  public OnnxTensor create() throws Exception {
+    stack.push(data);
+    stack.push(type);
+    stack.push(shape);
+    function.apply(stack);
+    OnnxTensor tensor = (OnnxTensor) stack.pop();
+    tensor.close();
+    return tensor;
+  }
+}
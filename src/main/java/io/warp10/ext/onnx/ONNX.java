@@ -20,11 +20,16 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Map;
 
 import ai.onnxruntime.OrtEnvironment;
 import ai.onnxruntime.OrtException;
 import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.SessionOptions;
+import io.warp10.ext.onnx.ONNXSessionCache.CachedSession;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
@@ -34,6 +39,49 @@ import io.warp10.script.WarpScriptStackFunction;
 public class ONNX extends NamedWarpScriptFunction implements WarpScriptStackFunction {
   
   private static final String ONNX_MODEL = "model";
+
+  /**
+   * Set to true to merge the ONNX.RUN calls made concurrently on the session into batches
+   */
+  public static final String KEY_MICROBATCH = "microbatch";
+
+  /**
+   * Maximum number of rows of a micro batch, defaults to ONNXWarpScriptExtension.CONF_MICROBATCH_MAXSIZE
+   */
+  public static final String KEY_MICROBATCH_MAXSIZE = "microbatch.maxsize";
+
+  /**
+   * Maximum time in ms a call waits for others to join its micro batch, defaults to ONNXWarpScriptExtension.CONF_MICROBATCH_WAIT
+   */
+  public static final String KEY_MICROBATCH_WAIT = "microbatch.wait";
+
+  /**
+   * Set to true or 'summary' to push a per operator summary of the ONNX Runtime profile onto
+   * the stack after the macro, or to 'trace' to push the chrome trace (JSON). Profiled macros
+   * use a dedicated session.
+   */
+  public static final String KEY_PROFILE = "profile";
+
+  /**
+   * Maximum number of concurrent calls on the model, can only lower ONNXWarpScriptExtension.CONF_LIMIT_MODEL_CONCURRENCY
+   */
+  public static final String KEY_LIMIT_CONCURRENCY = "limit.concurrency";
+
+  /**
+   * Maximum time in ms to wait for a slot, can only lower ONNXWarpScriptExtension.CONF_LIMIT_TIMEOUT
+   */
+  public static final String KEY_LIMIT_TIMEOUT = "limit.timeout";
+
+  /**
+   * Maximum number of bytes of native tensors alive at once during the call, can only lower
+   * ONNXWarpScriptExtension.CONF_LIMIT_NATIVE_BYTES
+   */
+  public static final String KEY_LIMIT_NATIVE_BYTES = "limit.native.bytes";
+
+  private static final String KEY_SHA256 = "sha256:";
+  private static final String KEY_FILE = "file:";
+  private static final String KEY_CLASSPATH = "classpath:";
+  private static final String KEY_OPTIONS = "#";
   
   public ONNX(String name) {
     super(name);
@@ -53,100 +101,373 @@ public class ONNX extends NamedWarpScriptFunction implements WarpScriptStackFunc
     top = stack.pop();
 
     Object model;
+    Map<Object,Object> params = null;
     if (top instanceof byte[] || top instanceof String) {
       model = top;
     } else if (top instanceof Map) {
-      model = ((Map<Object,Object>) top).get(ONNX_MODEL);
+      params = (Map<Object,Object>) top;
+      model = params.get(ONNX_MODEL);
     } else {
       throw new WarpScriptException(getName() + " expects a parameter MAP, an ONNX model (BYTES), or a path (STRING) to an ONNX model.");
     }
     
-    OrtEnvironment env = null;
-    
-    OrtSession session = null;
-    
+    final ONNXSessionOptions options = new ONNXSessionOptions(ONNXWarpScriptExtension.getDefaultSessionOptions(), params);
+
+    String profile = null;
+
+    if (null != params && null != params.get(KEY_PROFILE) && !Boolean.FALSE.equals(params.get(KEY_PROFILE))) {
+      Object mode = params.get(KEY_PROFILE);
+      if (Boolean.TRUE.equals(mode) || ONNXProfile.SUMMARY.equals(mode)) {
+        profile = ONNXProfile.SUMMARY;
+      } else if (ONNXProfile.TRACE.equals(mode)) {
+        profile = ONNXProfile.TRACE;
+      } else {
+        throw new WarpScriptException(getName() + " invalid '" + KEY_PROFILE + "', expected a BOOLEAN, '" + ONNXProfile.SUMMARY + "' or '" + ONNXProfile.TRACE + "'.");
+      }
+      options.enableProfiling(ONNXProfile.prefix());
+    }
+
+    String suffix = KEY_OPTIONS + options.fingerprint();
+
+    if (options.useGlobalThreads() && !ONNXWarpScriptExtension.hasGlobalThreadPools()) {
+      throw new WarpScriptException(getName() + " global thread pools are not configured, set '" + ONNXWarpScriptExtension.CONF_GLOBAL_INTRA_THREADS + "' or '" + ONNXWarpScriptExtension.CONF_GLOBAL_INTER_THREADS + "'.");
+    }
+
+    boolean microbatch = null != params && Boolean.TRUE.equals(params.get(KEY_MICROBATCH));
+    int microBatchMaxSize = ONNXWarpScriptExtension.getMicroBatchMaxSize();
+    double microBatchWait = ONNXWarpScriptExtension.getMicroBatchWait();
+
+    if (microbatch) {
+      if (params.get(KEY_MICROBATCH_MAXSIZE) instanceof Long) {
+        microBatchMaxSize = ((Long) params.get(KEY_MICROBATCH_MAXSIZE)).intValue();
+      } else if (null != params.get(KEY_MICROBATCH_MAXSIZE)) {
+        throw new WarpScriptException(getName() + " expects '" + KEY_MICROBATCH_MAXSIZE + "' to be a LONG.");
+      }
+      // Sub millisecond waits can be specified as DOUBLE
+      if (params.get(KEY_MICROBATCH_WAIT) instanceof Number) {
+        microBatchWait = ((Number) params.get(KEY_MICROBATCH_WAIT)).doubleValue();
+      } else if (null != params.get(KEY_MICROBATCH_WAIT)) {
+        throw new WarpScriptException(getName() + " expects '" + KEY_MICROBATCH_WAIT + "' to be numeric.");
+      }
+      if (microBatchMaxSize < 2 || microBatchWait < 0.0D) {
+        throw new WarpScriptException(getName() + " invalid micro batching configuration.");
+      }
+    }
+
+    int limitConcurrency = (int) limit(params, KEY_LIMIT_CONCURRENCY, ONNXWarpScriptExtension.getLimitModelConcurrency());
+    long limitTimeout = ONNXWarpScriptExtension.getLimitTimeout();
+    if (null != params && null != params.get(KEY_LIMIT_TIMEOUT)) {
+      // A timeout of 0 fails immediately when no slot is free
+      if (!(params.get(KEY_LIMIT_TIMEOUT) instanceof Long) || (Long) params.get(KEY_LIMIT_TIMEOUT) < 0L) {
+        throw new WarpScriptException(getName() + " expects '" + KEY_LIMIT_TIMEOUT + "' to be a positive LONG.");
+      }
+      limitTimeout = Math.min(limitTimeout, (Long) params.get(KEY_LIMIT_TIMEOUT));
+    }
+    long limitNativeBytes = limit(params, KEY_LIMIT_NATIVE_BYTES, ONNXWarpScriptExtension.getLimitNativeBytes());
+
+    ONNXSessionCache cache = ONNXWarpScriptExtension.getSessionCache();
+
+    CachedSession cs = null;
+
+    boolean profiled = false;
+
+    ONNXScope scope = null;
+
+    // Identity of the model, metrics are kept per model
+    String id = null;
+
     try {
-      env = OrtEnvironment.getEnvironment();
-      env.setTelemetry(false);
+      scope = ONNXScope.open(stack);
+
+      // Nested calls are already accounted for by the outermost one
+      if (null == scope.getParent()) {
+        ONNXLimiter global = ONNXLimiter.getGlobal();
+        global.acquire(getName(), ONNXWarpScriptExtension.getLimitConcurrency(), ONNXWarpScriptExtension.getLimitQueue(), limitTimeout);
+        scope.hold(global);
+      }
 
       if (model instanceof byte[]) {
-        session = env.createSession((byte[]) model);
+        final byte[] bytes = (byte[]) model;
+        final String hash = sha256(bytes);
+        final boolean persist = ONNXOptimizer.persistBytes(getName(), params);
+        final String bytesId = KEY_SHA256 + hash;
+
+        id = bytesId;
+
+        // Take the slot before loading so rejected calls do not load the model
+        admit(scope, id, limitConcurrency, limitTimeout);
+
+        cs = acquire(id + suffix, options, new ONNXSessionCache.Loader() {
+          @Override
+          public OrtSession load() throws OrtException, IOException {
+            long start = System.nanoTime();
+            OrtSession session = ONNXOptimizer.createSession(bytes, hash, options, persist);
+            // Metrics of BYTES models are dropped with their last session, only create them once loaded
+            ONNXMetrics.get(bytesId).record(ONNXMetrics.PHASE_LOAD, start);
+            return session;
+          }
+          @Override
+          public long getSize() {
+            return bytes.length;
+          }
+        });
       } else if (model instanceof String) {
-        
+
         if (null == ONNXWarpScriptExtension.getModelRoot() && !ONNXWarpScriptExtension.isClassPathEnabled()) {
           throw new WarpScriptException(getName() + " model loading from directory or classpath not enabled.");
         }
-        
-        String path = (String) model;
-        
-        if (!(path.endsWith(".onnx"))) {
-          throw new WarpScriptException(getName() + " model path does not end in '.onnx'.");
-        }
 
-        if (path.contains("./") || path.startsWith("/")) {
-          throw new WarpScriptException(getName() + " invalid model path '" + path + "'.");
-        }
+        final String path = (String) model;
+
+        checkPath(getName(), path);
 
         String root = ONNXWarpScriptExtension.getModelRoot();
-        
+
         if (null != root) {
-          File f = new File(root + "/" + path);
-          
+          final File f = new File(root + "/" + path);
+
           if (f.exists()) {
-            session = env.createSession(root + "/" + path);            
+            id = KEY_FILE + f.getPath();
+            admit(scope, id, limitConcurrency, limitTimeout);
+            cs = acquire(f, options);
           }
         }
-        
+
         // Check in the classpath
-        if (null == session && ONNXWarpScriptExtension.isClassPathEnabled()) {
-          InputStream in = this.getClass().getResourceAsStream(path);
-          
-          if (null != in) {
-            byte[] buf = new byte[1024];
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            while(true) {
-              int len = in.read(buf);
-              if (len < 0) {
-                break;
+        if (null == cs && ONNXWarpScriptExtension.isClassPathEnabled() && null != this.getClass().getResource(path)) {
+          final ONNXMetrics metrics = ONNXMetrics.get(id = KEY_CLASSPATH + path);
+
+          admit(scope, id, limitConcurrency, limitTimeout);
+
+          cs = acquire(id + suffix, options, new ONNXSessionCache.Loader() {
+            private long size = 0L;
+
+            @Override
+            public OrtSession load() throws OrtException, IOException {
+              byte[] bytes = readResource(path);
+              // The resource may have disappeared since it was looked up
+              if (null == bytes) {
+                throw new IOException("ONNX model '" + path + "' not found in the classpath.");
               }
-              out.write(buf, 0, len);
+              size = bytes.length;
+              return createSession(bytes, hash(bytes), options, true, metrics);
             }
-            in.close();
-            
-            session = env.createSession(out.toByteArray());
-          }
+            @Override
+            public long getSize() {
+              return size;
+            }
+          });
         }
-        
-        if (null == session) {
+
+        if (null == cs) {
           throw new WarpScriptException(getName() + " failed to load ONNX model '" + path + "'.");
         }
       } else {
         throw new WarpScriptException(getName() + " invalid '" + ONNX_MODEL + "' entry, expected BYTES or STRING.");
       }
-            
-      stack.push(session);
+
+      scope.setBudget(limitNativeBytes);
+      scope.bind(cs.getSession(), ONNXMetrics.get(id), cs.getBindingPlan(getName()), microbatch ? cs.getBatcher(microBatchMaxSize, (long) (microBatchWait * 1000000.0D)) : null);
+
+      stack.push(cs.getSession());
       stack.exec(macro);
+
+      if (null != profile) {
+        profiled = true;
+        stack.push(ONNXProfile.collect(cs.getSession(), profile));
+      }
     } catch (IOException ioe) {
       throw new WarpScriptException(getName() + " error loading ONNX model.", ioe);
     } catch (OrtException oe) {
       throw new WarpScriptException(getName() + " error loading ONNX model.", oe);
     } finally {
       WarpScriptException error = null;
-      
-      if (null != session) {       
+
+      // Release the native resources created by the macro before the session
+      if (null != scope) {
+        scope.close(stack);
+      }
+
+      if (null != cs) {
+        if (null != profile && !profiled) {
+          ONNXProfile.discard(cs.getSession());
+        }
         try {
-          session.close();
+          cache.release(cs);
         } catch (OrtException oe) {
-          error = new WarpScriptException(getName() + " error while closing ONNC session,", oe);
+          error = new WarpScriptException(getName() + " error while closing ONNX session,", oe);
         }
       }
-      
+
       if (null != error) {
         throw error;
       }
     }
-    
+
     return stack;
   }
 
+  /**
+   * Take a slot of the limiter of a model, unless an enclosing call on the same model holds one
+   */
+  private void admit(ONNXScope scope, String id, int limit, long timeout) throws WarpScriptException {
+    ONNXLimiter limiter = ONNXLimiter.get(id);
+
+    if (null == limiter || !scope.holds(limiter)) {
+      scope.hold(ONNXLimiter.acquire(getName(), id, limit, ONNXWarpScriptExtension.getLimitQueue(), timeout));
+    }
+  }
+
+  /**
+   * Return the limit from the parameter MAP if it is stricter than the configured one
+   *
+   * @param configured Configured limit, 0 or less for no limit
+   */
+  private long limit(Map<Object,Object> params, String key, long configured) throws WarpScriptException {
+    Object value = null == params ? null : params.get(key);
+
+    if (null == value) {
+      return configured;
+    }
+
+    if (!(value instanceof Long) || (Long) value <= 0L) {
+      throw new WarpScriptException(getName() + " expects '" + key + "' to be a strictly positive LONG.");
+    }
+
+    return configured > 0L ? Math.min(configured, (Long) value) : (Long) value;
+  }
+
+  /**
+   * Retrieve from the cache the session of a model file under the model root, loading it if needed.
+   * The returned session MUST be released.
+   */
+  static CachedSession acquire(final File f, final ONNXSessionOptions options) throws OrtException, IOException {
+    final String id = KEY_FILE + f.getPath();
+    final ONNXMetrics metrics = ONNXMetrics.get(id);
+
+    return acquire(getKeyPrefix(f) + options.fingerprint(), options, new ONNXSessionCache.Loader() {
+      @Override
+      public OrtSession load() throws OrtException, IOException {
+        return createSession(f.getPath(), options, metrics);
+      }
+      @Override
+      public long getSize() {
+        return f.length();
+      }
+    });
+  }
+
+  /**
+   * Acquire a session from the cache, or create a dedicated one when profiling
+   */
+  private static CachedSession acquire(String key, ONNXSessionOptions options, ONNXSessionCache.Loader loader) throws OrtException, IOException {
+    ONNXSessionCache cache = ONNXWarpScriptExtension.getSessionCache();
+    return options.isProfiling() ? cache.create(key, loader) : cache.acquire(key, loader);
+  }
+
+  /**
+   * Prefix of the cache keys of the sessions of a model file, whatever their options
+   */
+  static String getKeyPrefix(File f) {
+    return KEY_FILE + f.getPath() + KEY_OPTIONS;
+  }
+
+  /**
+   * Identity of the model of a cache key when the model was given as BYTES, null otherwise
+   */
+  static String getBytesModel(String key) {
+    int idx = key.indexOf(KEY_OPTIONS);
+    return key.startsWith(KEY_SHA256) && idx > 0 ? key.substring(0, idx) : null;
+  }
+
+  /**
+   * Check that a model path is a relative path to an .onnx file
+   */
+  static void checkPath(String function, String path) throws WarpScriptException {
+    if (!(path.endsWith(".onnx"))) {
+      throw new WarpScriptException(function + " model path does not end in '.onnx'.");
+    }
+
+    if (path.contains("./") || path.startsWith("/")) {
+      throw new WarpScriptException(function + " invalid model path '" + path + "'.");
+    }
+  }
+
+  /**
+   * Read a model from the classpath, null if it cannot be found
+   */
+  static byte[] readResource(String path) throws IOException {
+    InputStream in = ONNX.class.getResourceAsStream(path);
+
+    if (null == in) {
+      return null;
+    }
+
+    byte[] buf = new byte[1024];
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      while(true) {
+        int len = in.read(buf);
+        if (len < 0) {
+          break;
+        }
+        out.write(buf, 0, len);
+      }
+    } finally {
+      in.close();
+    }
+
+    return out.toByteArray();
+  }
+
+  private static OrtSession createSession(byte[] model, String hash, ONNXSessionOptions options, boolean persist, ONNXMetrics metrics) throws OrtException, IOException {
+    long start = System.nanoTime();
+    try {
+      return ONNXOptimizer.createSession(model, hash, options, persist);
+    } finally {
+      metrics.record(ONNXMetrics.PHASE_LOAD, start);
+    }
+  }
+
+  private static OrtSession createSession(String path, ONNXSessionOptions options, ONNXMetrics metrics) throws OrtException, IOException {
+    // The content is needed to look for an optimized version of the model
+    if (null != ONNXWarpScriptExtension.getOptimizedDir()) {
+      byte[] bytes = Files.readAllBytes(new File(path).toPath());
+      return createSession(bytes, hash(bytes), options, true, metrics);
+    }
+
+    OrtEnvironment env = ONNXWarpScriptExtension.getEnvironment();
+    long start = System.nanoTime();
+    try (SessionOptions opts = options.build()) {
+      return env.createSession(path, opts);
+    } finally {
+      metrics.record(ONNXMetrics.PHASE_LOAD, start);
+    }
+  }
+
+  /**
+   * SHA-256 of a model, for use in loaders
+   */
+  private static String hash(byte[] bytes) throws IOException {
+    try {
+      return sha256(bytes);
+    } catch (WarpScriptException wse) {
+      throw new IOException(wse);
+    }
+  }
+
+  static String sha256(byte[] bytes) throws WarpScriptException {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      byte[] digest = md.digest(bytes);
+      StringBuilder sb = new StringBuilder(digest.length * 2);
+      for (byte b: digest) {
+        sb.append(Character.forDigit((b >>> 4) & 0xF, 16));
+        sb.append(Character.forDigit(b & 0xF, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new WarpScriptException("Unable to compute model hash.", nsae);
+    }
+  }
 }
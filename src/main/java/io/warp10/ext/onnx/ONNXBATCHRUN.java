@@ -0,0 +1,359 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OnnxValue;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.Result;
+import ai.onnxruntime.TensorInfo;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+/**
+ * Run inference on a LIST of input MAPs. The input tensors of consecutive items are concatenated
+ * along their first (batch) dimension so a single run processes many items, the outputs are then
+ * split back along their first dimension into one output MAP per item.
+ */
+public class ONNXBATCHRUN extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  /**
+   * LIST of MAPs of input tensors
+   */
+  public static final String KEY_INPUTS = ONNXRUN.KEY_INPUTS;
+
+  /**
+   * Maximum number of rows of a batch, defaults to the value of ONNXWarpScriptExtension.CONF_BATCH_MAXSIZE
+   */
+  public static final String KEY_BATCH_SIZE = "batch.size";
+
+  /**
+   * Value used to pad the dynamic dimensions of inputs of different sizes, inputs must have identical
+   * shapes apart from their first dimension when not set. true pads with 0, false disables padding.
+   */
+  public static final String KEY_PAD = "pad";
+
+  public ONNXBATCHRUN(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+
+    Object top = stack.pop();
+
+    List<Object> items;
+    int batchSize = ONNXWarpScriptExtension.getBatchMaxSize();
+    Double pad = null;
+    ONNXOutputSpec spec = new ONNXOutputSpec(getName(), null);
+    long timeout = ONNXWatchdog.getTimeout(getName(), null);
+
+    if (top instanceof List) {
+      items = (List<Object>) top;
+    } else if (top instanceof Map && ((Map) top).get(KEY_INPUTS) instanceof List) {
+      Map<Object,Object> params = (Map<Object,Object>) top;
+      items = (List<Object>) params.get(KEY_INPUTS);
+
+      if (params.get(KEY_BATCH_SIZE) instanceof Long) {
+        batchSize = ((Long) params.get(KEY_BATCH_SIZE)).intValue();
+      } else if (null != params.get(KEY_BATCH_SIZE)) {
+        throw new WarpScriptException(getName() + " expects '" + KEY_BATCH_SIZE + "' to be a LONG.");
+      }
+
+      if (params.get(KEY_PAD) instanceof Number) {
+        pad = ((Number) params.get(KEY_PAD)).doubleValue();
+      } else if (params.get(KEY_PAD) instanceof Boolean) {
+        pad = ((Boolean) params.get(KEY_PAD)) ? 0.0D : null;
+      } else if (null != params.get(KEY_PAD)) {
+        throw new WarpScriptException(getName() + " expects '" + KEY_PAD + "' to be numeric or a BOOLEAN.");
+      }
+
+      spec = new ONNXOutputSpec(getName(), params);
+
+      // Outputs of a batch are split into temporary slices closed once converted, they cannot be kept
+      if (spec.hasFormat(ONNXUtils.FORMAT_TENSOR)) {
+        throw new WarpScriptException(getName() + " does not support the " + ONNXUtils.FORMAT_TENSOR + " format.");
+      }
+      timeout = ONNXWatchdog.getTimeout(getName(), params);
+    } else {
+      throw new WarpScriptException(getName() + " expects a LIST of MAPs of tensors or a parameter MAP as input.");
+    }
+
+    if (batchSize < 1) {
+      throw new WarpScriptException(getName() + " invalid '" + KEY_BATCH_SIZE + "', expected a strictly positive value.");
+    }
+
+    top = stack.pop();
+
+    if (!(top instanceof OrtSession)) {
+      throw new WarpScriptException(getName() + " operates on an ONNX session.");
+    }
+
+    OrtSession session = (OrtSession) top;
+    ONNXScope scope = ONNXScope.check(getName(), stack, session);
+    ONNXMetrics metrics = scope.getMetrics(session);
+
+    Map<String,NodeInfo> inputInfo;
+
+    try {
+      inputInfo = session.getInputInfo();
+    } catch (OrtException oe) {
+      throw new WarpScriptException(getName() + " unable to retrieve the session inputs.", oe);
+    }
+
+    Set<String> outputNames = spec.getOutputNames(getName(), session);
+
+    // A session with a fixed batch dimension only accepts batches of exactly that many rows
+    long fixed = fixedBatchSize(inputInfo);
+
+    if (fixed > 0L) {
+      batchSize = (int) Math.min(batchSize, fixed);
+    }
+
+    //
+    // Check the items and determine the number of rows of each one
+    //
+
+    List<Map<String,OnnxTensor>> inputs = new ArrayList<Map<String,OnnxTensor>>(items.size());
+    long[] rows = new long[items.size()];
+
+    for (int i = 0; i < items.size(); i++) {
+      if (!(items.get(i) instanceof Map)) {
+        throw new WarpScriptException(getName() + " expects each item to be a MAP of tensors.");
+      }
+
+      Map<String,OnnxTensor> item = toTensors(i, (Map<Object,Object>) items.get(i), inputInfo);
+      rows[i] = -1L;
+
+      for (Entry<String,OnnxTensor> entry: item.entrySet()) {
+        long[] shape = entry.getValue().getInfo().getShape();
+
+        if (-1L == rows[i]) {
+          rows[i] = shape[0];
+        } else if (rows[i] != shape[0]) {
+          throw new WarpScriptException(getName() + " inputs of item " + i + " have different batch sizes.");
+        }
+      }
+
+      inputs.add(item);
+    }
+
+    //
+    // Split the items in batches of at most batchSize rows, an item larger than batchSize forms its own batch
+    //
+
+    // Each batch is described by its first item, the item following its last one and its number of rows
+    List<long[]> batches = new ArrayList<long[]>();
+
+    int from = 0;
+
+    while (from < items.size()) {
+      int to = from + 1;
+      long total = rows[from];
+
+      while (to < items.size() && total + rows[to] <= batchSize) {
+        total += rows[to];
+        to++;
+      }
+
+      // Check all the batches before running any of them
+      if (fixed >= 0L && total != fixed) {
+        throw new WarpScriptException(getName() + " items " + from + " to " + (to - 1) + " form a batch of " + total + " rows but the session has a fixed batch dimension of " + fixed + ".");
+      }
+
+      batches.add(new long[] { from, to, total });
+
+      from = to;
+    }
+
+    List<Object> results = new ArrayList<Object>(items.size());
+
+    for (long[] batch: batches) {
+      results.addAll(run(stack, timeout, session, scope, metrics, inputInfo.keySet(), outputNames, inputs.subList((int) batch[0], (int) batch[1]), rows, (int) batch[0], batch[2], pad, spec));
+    }
+
+    stack.push(results);
+
+    return stack;
+  }
+
+  /**
+   * Run a batch of items and split its outputs
+   *
+   * @param first Index of the first item of the batch in rows
+   */
+  private List<Map<String,Object>> run(WarpScriptStack stack, long timeout, OrtSession session, ONNXScope scope, ONNXMetrics metrics, Set<String> inputNames, Set<String> outputNames, List<Map<String,OnnxTensor>> batch, long[] rows, int first, long total, Double pad, ONNXOutputSpec spec) throws WarpScriptException {
+    Map<String,OnnxTensor> inputs = new HashMap<String,OnnxTensor>();
+
+    try {
+      for (String name: inputNames) {
+        List<OnnxTensor> tensors = new ArrayList<OnnxTensor>(batch.size());
+        for (Map<String,OnnxTensor> item: batch) {
+          tensors.add(item.get(name));
+        }
+        // A batch of a single item is run on the tensors of the item
+        inputs.put(name, 1 == batch.size() ? tensors.get(0) : ONNXTensorOps.concat(tensors, 0, pad));
+      }
+
+      List<Map<String,Object>> results = new ArrayList<Map<String,Object>>(batch.size());
+      for (int i = 0; i < batch.size(); i++) {
+        results.add(new LinkedHashMap<String,Object>());
+      }
+
+      long begin = System.nanoTime();
+
+      try (ONNXWatchdog.Watch watch = ONNXWatchdog.watch(getName(), stack, timeout); Result result = watch.run(session, inputs, outputNames, null)) {
+        if (null != metrics) {
+          metrics.record(ONNXMetrics.PHASE_RUN, begin);
+        }
+
+        // The concatenated inputs and the outputs count against the budget of the scope until converted
+        long size = ONNXScope.sizeOf(result);
+        if (batch.size() > 1) {
+          for (OnnxTensor tensor: inputs.values()) {
+            size += ONNXScope.sizeOf(tensor);
+          }
+        }
+        scope.checkBudget(getName(), size);
+
+        for (Entry<String,OnnxValue> entry: result) {
+          String name = entry.getKey();
+          if (1 == batch.size()) {
+            results.get(0).put(name, spec.convert(name, entry.getValue()));
+            continue;
+          }
+
+          if (!(entry.getValue() instanceof OnnxTensor)) {
+            throw new WarpScriptException(getName() + " output '" + name + "' is not a tensor and cannot be split.");
+          }
+
+          OnnxTensor output = (OnnxTensor) entry.getValue();
+          TensorInfo info = output.getInfo();
+
+          if (0 == info.getShape().length || total != info.getShape()[0]) {
+            throw new WarpScriptException(getName() + " output '" + name + "' has no batch dimension and cannot be split.");
+          }
+
+          ByteBuffer content = ONNXTensorOps.content(output);
+          long start = 0L;
+
+          for (int i = 0; i < batch.size(); i++) {
+            long end = start + rows[first + i];
+            try (OnnxTensor slice = ONNXTensorOps.slice(content, info.getShape(), info.type, 0, start, end)) {
+              results.get(i).put(name, spec.convert(name, slice));
+            }
+            start = end;
+          }
+        }
+      }
+
+      return results;
+    } catch (OrtException oe) {
+      throw new WarpScriptException(getName() + " encountered an error while performing inference.", oe);
+    } finally {
+      // Only close the concatenated tensors
+      if (batch.size() > 1) {
+        for (OnnxTensor tensor: inputs.values()) {
+          tensor.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Return the fixed batch dimension of the session inputs, -1 if it is dynamic
+   */
+  private static long fixedBatchSize(Map<String,NodeInfo> inputInfo) {
+    long fixed = -1L;
+
+    for (NodeInfo info: inputInfo.values()) {
+      if (!(info.getInfo() instanceof TensorInfo)) {
+        continue;
+      }
+
+      long[] expected = ((TensorInfo) info.getInfo()).getShape();
+
+      if (expected.length > 0 && expected[0] >= 0 && (fixed < 0L || expected[0] < fixed)) {
+        fixed = expected[0];
+      }
+    }
+
+    return fixed;
+  }
+
+  private Map<String,OnnxTensor> toTensors(int index, Map<Object,Object> tensors, Map<String,NodeInfo> inputInfo) throws WarpScriptException {
+    Map<String,OnnxTensor> result = new HashMap<String,OnnxTensor>(tensors.size());
+
+    for (Entry<Object,Object> entry: tensors.entrySet()) {
+      if (!(entry.getKey() instanceof String)) {
+        throw new WarpScriptException(getName() + " tensor keys are expected to be STRINGs.");
+      }
+
+      if (!(entry.getValue() instanceof OnnxTensor)) {
+        throw new WarpScriptException(getName() + " invalid value for key '" + entry.getKey() + "' of item " + index + ", not an ONNX tensor.");
+      }
+
+      if (ONNXScope.isClosed(entry.getValue())) {
+        throw new WarpScriptException(getName() + " tensor for key '" + entry.getKey() + "' of item " + index + " was closed.");
+      }
+
+      NodeInfo info = inputInfo.get(entry.getKey());
+
+      if (null == info) {
+        throw new WarpScriptException(getName() + " unknown input '" + entry.getKey() + "'.");
+      }
+
+      long[] shape = ((OnnxTensor) entry.getValue()).getInfo().getShape();
+
+      if (info.getInfo() instanceof TensorInfo) {
+        long[] expected = ((TensorInfo) info.getInfo()).getShape();
+
+        if (0 == shape.length || expected.length != shape.length) {
+          throw new WarpScriptException(getName() + " input '" + entry.getKey() + "' of item " + index + " must have rank " + expected.length + " with a leading batch dimension.");
+        }
+
+        // Static dimensions must match, only dynamic ones can be padded
+        for (int d = 1; d < shape.length; d++) {
+          if (expected[d] >= 0 && expected[d] != shape[d]) {
+            throw new WarpScriptException(getName() + " input '" + entry.getKey() + "' of item " + index + " has dimension " + d + " of size " + shape[d] + ", expected " + expected[d] + ".");
+          }
+        }
+      }
+
+      result.put((String) entry.getKey(), (OnnxTensor) entry.getValue());
+    }
+
+    if (result.size() != inputInfo.size()) {
+      throw new WarpScriptException(getName() + " item " + index + " does not provide all the session inputs " + inputInfo.keySet() + ".");
+    }
+
+    return result;
+  }
+}
@@ -0,0 +1,412 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OnnxTensorLike;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.TensorInfo;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+/**
+ * Binds the inputs of ONNX.RUN to the inputs of a session.
+ *
+ * The plan is compiled once per session from its input information. Tensors are checked against
+ * the expected element type and shape before reaching ONNX Runtime. DOUBLE or LONG vectors, LISTs,
+ * GTS, LISTs of GTS and LISTs of LISTs of GTS are written in a single pass to a tensor of the
+ * expected type, whose shape is resolved from the natural shape of the value (nesting of LISTs,
+ * [N,T,C] for GTS) and the fixed dimensions of the input. Symbolic dimensions are resolved from
+ * the number of elements, a leading symbolic batch dimension defaults to 1.
+ *
+ * Plans of cached sessions are kept by their CachedSession and reached through the ONNX scope.
+ */
+public class ONNXBindingPlan {
+
+  /**
+   * Expected type and shape of the tensor inputs, -1 for symbolic dimensions. Non tensor inputs map to null.
+   */
+  private final Map<String,TensorInfo> inputs = new HashMap<String,TensorInfo>();
+
+  private ONNXBindingPlan(OrtSession session) throws OrtException {
+    for (Entry<String,NodeInfo> entry: session.getInputInfo().entrySet()) {
+      NodeInfo info = entry.getValue();
+      inputs.put(entry.getKey(), info.getInfo() instanceof TensorInfo ? (TensorInfo) info.getInfo() : null);
+    }
+  }
+
+  /**
+   * Compile the plan of a session
+   */
+  public static ONNXBindingPlan compile(String function, OrtSession session) throws WarpScriptException {
+    try {
+      return new ONNXBindingPlan(session);
+    } catch (OrtException oe) {
+      throw new WarpScriptException(function + " unable to retrieve the session inputs.", oe);
+    }
+  }
+
+  /**
+   * Return the plan of a session, the one of its cached session. The session must belong to the
+   * current ONNX scope or to one of its parents.
+   */
+  public static ONNXBindingPlan get(String function, WarpScriptStack stack, OrtSession session) throws WarpScriptException {
+    ONNXBindingPlan plan = ONNXScope.check(function, stack, session).getBindingPlan(session);
+
+    if (null == plan) {
+      throw new WarpScriptException(function + " can only use the session of an enclosing ONNX call.");
+    }
+
+    return plan;
+  }
+
+  /**
+   * Bind a MAP of input name to tensor or value
+   *
+   * @param bound Tensors created by the binding, which the caller MUST close
+   */
+  public Map<String,OnnxTensorLike> bind(String function, Map<Object,Object> values, List<OnnxTensor> bound) throws WarpScriptException {
+    return bind(function, values, bound, ONNXGTSUtils.FILL_NONE, 0.0D);
+  }
+
+  /**
+   * Bind a MAP of input name to tensor or value, GTS with different ticks are aligned using a fill policy
+   *
+   * @param bound Tensors created by the binding, which the caller MUST close
+   * @param fill One of the ONNXGTSUtils fill policies
+   * @param fillValue Value used by ONNXGTSUtils.FILL_VALUE
+   */
+  public Map<String,OnnxTensorLike> bind(String function, Map<Object,Object> values, List<OnnxTensor> bound, String fill, double fillValue) throws WarpScriptException {
+    Map<String,OnnxTensorLike> result = new HashMap<String,OnnxTensorLike>(values.size());
+
+    for (Entry<Object,Object> entry: values.entrySet()) {
+      if (!(entry.getKey() instanceof String)) {
+        throw new WarpScriptException(function + " expects input names to be STRINGs.");
+      }
+
+      String name = (String) entry.getKey();
+
+      if (!inputs.containsKey(name)) {
+        throw new WarpScriptException(function + " unknown input '" + name + "'.");
+      }
+
+      TensorInfo info = inputs.get(name);
+      Object value = entry.getValue();
+
+      if (value instanceof OnnxTensorLike) {
+        if (ONNXScope.isClosed(value)) {
+          throw new WarpScriptException(function + " tensor for key '" + name + "' was closed.");
+        }
+        if (value instanceof OnnxTensor && null != info) {
+          check(function, name, info, ((OnnxTensor) value).getInfo());
+        }
+        result.put(name, (OnnxTensorLike) value);
+        continue;
+      }
+
+      if (null == info) {
+        throw new WarpScriptException(function + " input '" + name + "' is not a tensor, it expects an ONNX value.");
+      }
+
+      OnnxTensor tensor;
+
+      try {
+        tensor = convert(function, name, info, value, fill, fillValue);
+      } catch (OrtException oe) {
+        throw new WarpScriptException(function + " unable to create the tensor of input '" + name + "'.", oe);
+      }
+
+      bound.add(tensor);
+      result.put(name, tensor);
+    }
+
+    return result;
+  }
+
+  private static void check(String function, String name, TensorInfo expected, TensorInfo actual) throws WarpScriptException {
+    if (expected.type != actual.type) {
+      throw new WarpScriptException(function + " input '" + name + "' expects a tensor of type " + expected.type + ", got " + actual.type + ".");
+    }
+
+    if (!compatible(expected.getShape(), actual.getShape())) {
+      throw new WarpScriptException(function + " input '" + name + "' expects a tensor of shape " + Arrays.toString(expected.getShape()) + ", got " + Arrays.toString(actual.getShape()) + ".");
+    }
+  }
+
+  private static OnnxTensor convert(String function, String name, TensorInfo info, Object value, String fill, double fillValue) throws WarpScriptException, OrtException {
+    long[] expected = info.getShape();
+
+    if (OnnxJavaType.STRING == info.type) {
+      if (!(value instanceof List)) {
+        throw new WarpScriptException(function + " input '" + name + "' expects a LIST of STRINGs.");
+      }
+      List<Object> list = (List<Object>) value;
+      String[] strings = new String[flattenSize(list)];
+      loadSTRING(function, name, list, strings, 0);
+      return OnnxTensor.createTensor(ONNXWarpScriptExtension.getEnvironment(), strings, resolve(function, name, expected, listShape(list, strings.length), strings.length));
+    }
+
+    if (value instanceof double[]) {
+      double[] vector = (double[]) value;
+      ONNXTensorBuilder builder = new ONNXTensorBuilder(info.type, resolve(function, name, expected, new long[] { vector.length }, vector.length));
+      for (int i = 0; i < vector.length; i++) {
+        builder.set(i, vector[i]);
+      }
+      return builder.build();
+    }
+
+    if (value instanceof long[]) {
+      long[] vector = (long[]) value;
+      ONNXTensorBuilder builder = new ONNXTensorBuilder(info.type, resolve(function, name, expected, new long[] { vector.length }, vector.length));
+      for (int i = 0; i < vector.length; i++) {
+        builder.set(i, vector[i]);
+      }
+      return builder.build();
+    }
+
+    if (value instanceof GeoTimeSerie || isGTSList(value)) {
+      return fromSeries(function, name, info, value, fill, fillValue);
+    }
+
+    if (value instanceof List) {
+      List<Object> list = (List<Object>) value;
+      int size = flattenSize(list);
+      ONNXTensorBuilder builder = new ONNXTensorBuilder(info.type, resolve(function, name, expected, listShape(list, size), size));
+      load(function, name, list, builder, 0);
+      return builder.build();
+    }
+
+    throw new WarpScriptException(function + " input '" + name + "' expects a tensor, a vector, a LIST, a GTS or a LIST of GTS.");
+  }
+
+  /**
+   * Write GTS aligned on their ticks, with a natural shape of [N,T,C]
+   */
+  private static OnnxTensor fromSeries(String function, String name, TensorInfo info, Object value, String fill, double fillValue) throws WarpScriptException, OrtException {
+    List<List<GeoTimeSerie>> batches = new ArrayList<List<GeoTimeSerie>>();
+
+    if (value instanceof GeoTimeSerie) {
+      batches.add(Collections.singletonList((GeoTimeSerie) value));
+    } else if (((List) value).get(0) instanceof GeoTimeSerie) {
+      batches.add(checkGTSList(function, name, (List) value));
+    } else {
+      for (Object elt: (List) value) {
+        if (!(elt instanceof List)) {
+          throw new WarpScriptException(function + " input '" + name + "' expects a LIST of LISTs of GTS.");
+        }
+        batches.add(checkGTSList(function, name, (List) elt));
+      }
+    }
+
+    List<ONNXGTSUtils.Aligned> aligned = new ArrayList<ONNXGTSUtils.Aligned>(batches.size());
+
+    int steps = -1;
+    int channels = -1;
+
+    for (List<GeoTimeSerie> batch: batches) {
+      ONNXGTSUtils.Aligned a = ONNXGTSUtils.align(batch, fill, fillValue);
+      if (-1 == steps) {
+        steps = a.ticks.length;
+        channels = a.columns.length;
+      } else if (steps != a.ticks.length || channels != a.columns.length) {
+        throw new WarpScriptException(function + " input '" + name + "' batches must have the same number of GTS and of aligned ticks.");
+      }
+      aligned.add(a);
+    }
+
+    long[] natural = new long[] { batches.size(), steps, channels };
+    ONNXTensorBuilder builder = new ONNXTensorBuilder(info.type, resolve(function, name, info.getShape(), natural, batches.size() * steps * channels));
+
+    int idx = 0;
+    for (ONNXGTSUtils.Aligned a: aligned) {
+      for (int t = 0; t < steps; t++) {
+        for (int c = 0; c < channels; c++) {
+          builder.set(idx++, a.columns[c][t]);
+        }
+      }
+    }
+
+    return builder.build();
+  }
+
+  /**
+   * Resolve the shape of a value for an input
+   *
+   * @param expected Shape of the input, -1 for symbolic dimensions
+   * @param natural Shape of the value, null if it has none
+   * @param count Number of elements of the value
+   */
+  static long[] resolve(String function, String name, long[] expected, long[] natural, long count) throws WarpScriptException {
+    if (null != natural) {
+      if (compatible(expected, natural)) {
+        return natural;
+      }
+
+      // Add or remove a batch dimension of 1
+      if (natural.length + 1 == expected.length) {
+        long[] batched = new long[expected.length];
+        batched[0] = 1L;
+        System.arraycopy(natural, 0, batched, 1, natural.length);
+        if (compatible(expected, batched)) {
+          return batched;
+        }
+      } else if (natural.length == expected.length + 1 && 1L == natural[0]) {
+        long[] unbatched = Arrays.copyOfRange(natural, 1, natural.length);
+        if (compatible(expected, unbatched)) {
+          return unbatched;
+        }
+      }
+    }
+
+    long[] shape = expected.clone();
+    long fixed = 1L;
+    List<Integer> symbolic = new ArrayList<Integer>();
+
+    for (int i = 0; i < shape.length; i++) {
+      if (shape[i] < 0L) {
+        symbolic.add(i);
+      } else {
+        fixed *= shape[i];
+      }
+    }
+
+    // A leading symbolic batch dimension is 1 when other dimensions are symbolic
+    if (symbolic.size() > 1 && 0 == symbolic.get(0)) {
+      shape[0] = 1L;
+      symbolic.remove(0);
+    }
+
+    if (symbolic.isEmpty() && fixed == count) {
+      return shape;
+    }
+
+    if (1 == symbolic.size() && fixed > 0L && 0L == count % fixed) {
+      shape[symbolic.get(0)] = count / fixed;
+      return shape;
+    }
+
+    throw new WarpScriptException(function + " cannot bind " + count + " elements to input '" + name + "' of shape " + Arrays.toString(expected) + ", use ONNX.TENSOR to specify the shape.");
+  }
+
+  private static boolean compatible(long[] expected, long[] actual) {
+    if (expected.length != actual.length) {
+      return false;
+    }
+    for (int i = 0; i < expected.length; i++) {
+      if (expected[i] >= 0L && expected[i] != actual[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Shape of nested LISTs, null if they are not regular
+   */
+  private static long[] listShape(List<Object> list, int size) {
+    List<Long> dims = new ArrayList<Long>();
+    Object elt = list;
+
+    while (elt instanceof List) {
+      dims.add((long) ((List) elt).size());
+      elt = ((List) elt).isEmpty() ? null : ((List) elt).get(0);
+    }
+
+    long[] shape = new long[dims.size()];
+    long elements = 1L;
+    for (int i = 0; i < shape.length; i++) {
+      shape[i] = dims.get(i);
+      elements *= shape[i];
+    }
+
+    return elements == size ? shape : null;
+  }
+
+  private static boolean isGTSList(Object value) {
+    if (!(value instanceof List) || ((List) value).isEmpty()) {
+      return false;
+    }
+    Object first = ((List) value).get(0);
+    if (first instanceof List && !((List) first).isEmpty()) {
+      first = ((List) first).get(0);
+    }
+    return first instanceof GeoTimeSerie;
+  }
+
+  private static List<GeoTimeSerie> checkGTSList(String function, String name, List list) throws WarpScriptException {
+    for (Object elt: list) {
+      if (!(elt instanceof GeoTimeSerie)) {
+        throw new WarpScriptException(function + " input '" + name + "' expects a LIST of GTS.");
+      }
+    }
+    return (List<GeoTimeSerie>) list;
+  }
+
+  private static int flattenSize(List list) {
+    int c = 0;
+    for (Object o: list) {
+      if (o instanceof List) {
+        c += flattenSize((List) o);
+      } else {
+        c++;
+      }
+    }
+    return c;
+  }
+
+  private static int load(String function, String name, List l, ONNXTensorBuilder b, int pos) throws WarpScriptException {
+    for (Object o: l) {
+      if (o instanceof List) {
+        pos = load(function, name, (List) o, b, pos);
+      } else if (o instanceof Double || o instanceof Float) {
+        b.set(pos++, ((Number) o).doubleValue());
+      } else if (o instanceof Number) {
+        b.set(pos++, ((Number) o).longValue());
+      } else if (o instanceof Boolean) {
+        b.set(pos++, Boolean.TRUE.equals(o) ? 1L : 0L);
+      } else {
+        throw new WarpScriptException(function + " input '" + name + "' expects numeric or BOOLEAN values.");
+      }
+    }
+    return pos;
+  }
+
+  private static int loadSTRING(String function, String name, List l, String[] a, int pos) throws WarpScriptException {
+    for (Object o: l) {
+      if (o instanceof List) {
+        pos = loadSTRING(function, name, (List) o, a, pos);
+      } else if (o instanceof String) {
+        a[pos++] = (String) o;
+      } else {
+        throw new WarpScriptException(function + " input '" + name + "' expects STRING values.");
+      }
+    }
+    return pos;
+  }
+}
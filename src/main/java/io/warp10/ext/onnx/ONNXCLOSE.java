@@ -0,0 +1,69 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.util.List;
+import java.util.Map;
+
+import ai.onnxruntime.OnnxValue;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+/**
+ * Release the native memory of a tensor, or of the tensors in a LIST or in the values of a MAP,
+ * without waiting for the end of the enclosing ONNX macro.
+ */
+public class ONNXCLOSE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+  public ONNXCLOSE(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Object top = stack.pop();
+
+    ONNXScope scope = ONNXScope.get(stack);
+
+    if (top instanceof OnnxValue) {
+      ONNXScope.close(scope, (OnnxValue) top);
+    } else if (top instanceof List) {
+      for (Object elt: (List) top) {
+        if (!(elt instanceof OnnxValue)) {
+          throw new WarpScriptException(getName() + " expects a LIST of tensors.");
+        }
+      }
+      for (Object elt: (List) top) {
+        ONNXScope.close(scope, (OnnxValue) elt);
+      }
+    } else if (top instanceof Map) {
+      for (Object elt: ((Map) top).values()) {
+        if (!(elt instanceof OnnxValue)) {
+          throw new WarpScriptException(getName() + " expects a MAP whose values are tensors.");
+        }
+      }
+      for (Object elt: ((Map) top).values()) {
+        ONNXScope.close(scope, (OnnxValue) elt);
+      }
+    } else {
+      throw new WarpScriptException(getName() + " operates on a tensor, a LIST of tensors or a MAP of tensors.");
+    }
+
+    return stack;
+  }
+}
@@ -0,0 +1,73 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtException;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+/**
+ * Concatenate a LIST of numeric tensors along an axis without converting their content. The
+ * tensors must have the same type and the same dimensions except along the axis. The new tensor
+ * is closed at the end of the enclosing ONNX macro.
+ */
+public class ONNXCONCAT extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  public ONNXCONCAT(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Object axis = stack.pop();
+
+    if (!(axis instanceof Long)) {
+      throw new WarpScriptException(getName() + " expects an axis (LONG).");
+    }
+
+    Object top = stack.pop();
+
+    if (!(top instanceof List)) {
+      throw new WarpScriptException(getName() + " expects a LIST of tensors.");
+    }
+
+    List<OnnxTensor> tensors = new ArrayList<OnnxTensor>(((List) top).size());
+    for (Object elt: (List) top) {
+      tensors.add(ONNXTensorOps.checkTensor(getName(), elt));
+    }
+
+    OnnxTensor concatenated;
+
+    try {
+      concatenated = ONNXTensorOps.concat(tensors, ((Long) axis).intValue(), null);
+    } catch (OrtException oe) {
+      throw new WarpScriptException(getName() + " error while concatenating tensors.", oe);
+    }
+
+    ONNXScope.register(stack, getName(), concatenated);
+
+    stack.push(concatenated);
+
+    return stack;
+  }
+}
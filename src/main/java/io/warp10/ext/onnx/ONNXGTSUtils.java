@@ -0,0 +1,263 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+import io.warp10.script.WarpScriptException;
+
+/**
+ * Reads the values of Geo Time Series as primitive arrays, aligning multivariate
+ * series on their ticks.
+ */
+public class ONNXGTSUtils {
+
+  /**
+   * Series must have identical ticks
+   */
+  public static final String FILL_NONE = "none";
+
+  /**
+   * Missing values take the value at the previous tick, or at the next one for leading gaps
+   */
+  public static final String FILL_PREVIOUS = "previous";
+
+  /**
+   * Missing values take the value at the next tick, or at the previous one for trailing gaps
+   */
+  public static final String FILL_NEXT = "next";
+
+  /**
+   * Missing values take a constant value
+   */
+  public static final String FILL_VALUE = "value";
+
+  /**
+   * Values of several GTS on a common set of ticks, one column per GTS
+   */
+  public static class Aligned {
+    public final long[] ticks;
+    public final double[][] columns;
+
+    private Aligned(long[] ticks, double[][] columns) {
+      this.ticks = ticks;
+      this.columns = columns;
+    }
+  }
+
+  public static boolean isFill(String fill) {
+    return FILL_NONE.equals(fill) || FILL_PREVIOUS.equals(fill) || FILL_NEXT.equals(fill) || FILL_VALUE.equals(fill);
+  }
+
+  /**
+   * Align the values of numeric GTS on the union of their ticks. The GTS are left untouched.
+   *
+   * @param series GTS to align
+   * @param fill Fill policy for the ticks a GTS has no value at
+   * @param fillValue Value used by the FILL_VALUE policy
+   */
+  public static Aligned align(List<GeoTimeSerie> series, String fill, double fillValue) throws WarpScriptException {
+    int n = series.size();
+
+    long[][] ticks = new long[n][];
+    double[][] values = new double[n][];
+
+    boolean aligned = true;
+
+    for (int i = 0; i < n; i++) {
+      GeoTimeSerie gts = series.get(i);
+
+      if (gts.size() > 0 && TYPE.DOUBLE != gts.getType() && TYPE.LONG != gts.getType()) {
+        throw new WarpScriptException("Only numeric Geo Time Series can be converted to tensors.");
+      }
+
+      ticks[i] = GTSHelper.getTicks(gts);
+      values[i] = GTSHelper.getValuesAsDouble(gts);
+      sort(ticks[i], values[i]);
+
+      if (i > 0 && !Arrays.equals(ticks[0], ticks[i])) {
+        aligned = false;
+      }
+    }
+
+    if (0 == n || aligned) {
+      return new Aligned(0 == n ? new long[0] : ticks[0], values);
+    }
+
+    if (FILL_NONE.equals(fill)) {
+      throw new WarpScriptException("Geo Time Series do not share the same ticks, specify a fill policy.");
+    }
+
+    //
+    // Merge the ticks of all series
+    //
+
+    long[] merged = new long[0];
+    for (long[] t: ticks) {
+      merged = merge(merged, t);
+    }
+
+    double[][] columns = new double[n][];
+
+    for (int i = 0; i < n; i++) {
+      columns[i] = fill(merged, ticks[i], values[i], fill, fillValue);
+    }
+
+    return new Aligned(merged, columns);
+  }
+
+  /**
+   * Create the GTS receiving the rows of an output with the given number of columns, one GTS
+   * per column. The GTS have the name and labels of the template, plus an index label if there
+   * are several columns.
+   */
+  public static List<GeoTimeSerie> outputSeries(GeoTimeSerie template, int columns, int size) {
+    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>(columns);
+
+    for (int c = 0; c < columns; c++) {
+      GeoTimeSerie gts = template.cloneEmpty(size);
+      if (columns > 1) {
+        Map<String,String> labels = new HashMap<String,String>(gts.getLabels());
+        labels.put(ONNXUtils.GTS_INDEX_LABEL, Integer.toString(c));
+        gts.setLabels(labels);
+      }
+      series.add(gts);
+    }
+
+    return series;
+  }
+
+  /**
+   * Add a row of an output, read from its flattened content (double[] or long[]), to the GTS created by outputSeries
+   */
+  public static void addRow(List<GeoTimeSerie> series, long tick, Object vector, int row) {
+    int columns = series.size();
+
+    for (int c = 0; c < columns; c++) {
+      if (vector instanceof double[]) {
+        GTSHelper.setValue(series.get(c), tick, ((double[]) vector)[row * columns + c]);
+      } else {
+        GTSHelper.setValue(series.get(c), tick, ((long[]) vector)[row * columns + c]);
+      }
+    }
+  }
+
+  /**
+   * Sort by tick the ticks and values read from a GTS. They are copies, sorting them instead of
+   * the GTS does not reorder the GTS of the caller.
+   */
+  static void sort(long[] ticks, double[] values) {
+    boolean sorted = true;
+
+    for (int i = 1; i < ticks.length && sorted; i++) {
+      sorted = ticks[i - 1] <= ticks[i];
+    }
+
+    if (sorted) {
+      return;
+    }
+
+    Integer[] order = new Integer[ticks.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+
+    final long[] keys = ticks.clone();
+    // Stable, values at the same tick keep their order
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Long.compare(keys[a], keys[b]);
+      }
+    });
+
+    double[] copy = values.clone();
+
+    for (int i = 0; i < order.length; i++) {
+      ticks[i] = keys[order[i]];
+      values[i] = copy[order[i]];
+    }
+  }
+
+  /**
+   * Merge two sorted tick arrays, removing duplicates
+   */
+  private static long[] merge(long[] a, long[] b) {
+    long[] merged = new long[a.length + b.length];
+    int i = 0;
+    int j = 0;
+    int k = 0;
+
+    while (i < a.length || j < b.length) {
+      long tick;
+      if (j >= b.length || (i < a.length && a[i] <= b[j])) {
+        tick = a[i++];
+      } else {
+        tick = b[j++];
+      }
+      if (0 == k || merged[k - 1] != tick) {
+        merged[k++] = tick;
+      }
+    }
+
+    return Arrays.copyOf(merged, k);
+  }
+
+  private static double[] fill(long[] merged, long[] ticks, double[] values, String fill, double fillValue) throws WarpScriptException {
+    double[] column = new double[merged.length];
+
+    if (0 == ticks.length) {
+      if (!FILL_VALUE.equals(fill)) {
+        throw new WarpScriptException("Cannot fill an empty Geo Time Series with policy '" + fill + "'.");
+      }
+      Arrays.fill(column, fillValue);
+      return column;
+    }
+
+    // Index of the next value to consider
+    int j = 0;
+
+    for (int k = 0; k < merged.length; k++) {
+      long tick = merged[k];
+
+      // Skip to the last value whose tick is <= the current tick
+      while (j < ticks.length && ticks[j] <= tick) {
+        j++;
+      }
+
+      if (j > 0 && ticks[j - 1] == tick) {
+        column[k] = values[j - 1];
+      } else if (FILL_PREVIOUS.equals(fill)) {
+        column[k] = j > 0 ? values[j - 1] : values[0];
+      } else if (FILL_NEXT.equals(fill)) {
+        column[k] = j < ticks.length ? values[j] : values[ticks.length - 1];
+      } else {
+        column[k] = fillValue;
+      }
+    }
+
+    return column;
+  }
+}
@@ -0,0 +1,116 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations in nanoseconds.
+ *
+ * Buckets are logarithmic, each power of two is split into SUB_BUCKETS linear buckets, so
+ * percentiles are estimated within 1/SUB_BUCKETS (about 3%) of their actual value.
+ */
+public class ONNXHistogram {
+
+  private static final int SUB_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+  private final AtomicLong count = new AtomicLong(0L);
+  private final AtomicLong total = new AtomicLong(0L);
+  private final AtomicLong max = new AtomicLong(0L);
+
+  public void record(long nanos) {
+    if (nanos < 0L) {
+      nanos = 0L;
+    }
+
+    buckets.incrementAndGet(index(nanos));
+    count.incrementAndGet();
+    total.addAndGet(nanos);
+
+    long m = max.get();
+    while (nanos > m && !max.compareAndSet(m, nanos)) {
+      m = max.get();
+    }
+  }
+
+  private static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exp = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) ((value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+    return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * Upper bound of the values of a bucket
+   */
+  private static long upperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int exp = index / SUB_BUCKETS + SUB_BITS - 1;
+    long sub = index % SUB_BUCKETS;
+    return ((SUB_BUCKETS + sub + 1) << (exp - SUB_BITS)) - 1;
+  }
+
+  /**
+   * Estimate of the given percentile, in nanoseconds
+   *
+   * @param percentile Percentile in ]0,100]
+   */
+  public long percentile(double percentile) {
+    long n = 0L;
+    long[] snapshot = new long[buckets.length()];
+
+    for (int i = 0; i < snapshot.length; i++) {
+      snapshot[i] = buckets.get(i);
+      n += snapshot[i];
+    }
+
+    if (0L == n) {
+      return 0L;
+    }
+
+    long rank = (long) Math.ceil(percentile / 100.0D * n);
+    long seen = 0L;
+
+    for (int i = 0; i < snapshot.length; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(upperBound(i), max.get());
+      }
+    }
+
+    return max.get();
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getTotal() {
+    return total.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+}
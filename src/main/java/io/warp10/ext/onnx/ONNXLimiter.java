@@ -0,0 +1,199 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.warp10.script.WarpScriptException;
+
+/**
+ * Admission control of ONNX calls.
+ *
+ * A limiter counts the ONNX calls active on a model, or on the whole extension for the global
+ * limiter. A call is admitted when fewer calls than its limit are active, otherwise it waits in
+ * a bounded queue until a slot frees up or its timeout expires. The limit is given per call so
+ * that a call can be stricter than the configuration.
+ *
+ * The limiter of a model only exists while calls are active or waiting on the model, so the
+ * number of limiters is bounded by the number of concurrent calls.
+ */
+public class ONNXLimiter {
+
+  public static final String STATS_ACTIVE = "limits.active";
+  public static final String STATS_REJECTED = "limits.rejected";
+
+  private static final ONNXLimiter global = new ONNXLimiter(null, "all models");
+
+  private static final ConcurrentHashMap<String,ONNXLimiter> models = new ConcurrentHashMap<String,ONNXLimiter>();
+
+  private static final AtomicLong rejected = new AtomicLong(0L);
+
+  /**
+   * Identity of the model, null for the global limiter
+   */
+  private final String model;
+
+  private final String name;
+
+  private int active = 0;
+  private int waiting = 0;
+
+  /**
+   * Set when the limiter is removed from the models map, it can no longer be acquired
+   */
+  private boolean removed = false;
+
+  private ONNXLimiter(String model, String name) {
+    this.model = model;
+    this.name = name;
+  }
+
+  public static ONNXLimiter getGlobal() {
+    return global;
+  }
+
+  /**
+   * Return the current limiter of a model, null if no call is active or waiting on the model
+   *
+   * @param model Identity of the model, its path or content hash
+   */
+  public static ONNXLimiter get(String model) {
+    return models.get(model);
+  }
+
+  /**
+   * Wait for a slot of the limiter of a model, creating the limiter if needed. A successful call
+   * MUST be followed by a call to release on the returned limiter.
+   *
+   * @param model Identity of the model, its path or content hash
+   * @see #acquire(String, int, int, long)
+   */
+  public static ONNXLimiter acquire(String function, String model, int limit, int queue, long timeout) throws WarpScriptException {
+    while (true) {
+      ONNXLimiter limiter = models.get(model);
+
+      if (null == limiter) {
+        limiter = new ONNXLimiter(model, "model '" + model + "'");
+        ONNXLimiter previous = models.putIfAbsent(model, limiter);
+        if (null != previous) {
+          limiter = previous;
+        }
+      }
+
+      // The limiter may have been removed since it was retrieved, retry with a new one
+      if (limiter.tryAcquire(function, limit, queue, timeout)) {
+        return limiter;
+      }
+    }
+  }
+
+  /**
+   * Wait for a slot, a successful call MUST be followed by a call to release
+   *
+   * @param function Name of the calling function, used in error messages
+   * @param limit Maximum number of active calls, 0 for no limit
+   * @param queue Maximum number of waiting calls
+   * @param timeout Maximum time to wait for a slot, in ms
+   */
+  public void acquire(String function, int limit, int queue, long timeout) throws WarpScriptException {
+    tryAcquire(function, limit, queue, timeout);
+  }
+
+  /**
+   * Wait for a slot, false if the limiter was removed
+   */
+  private synchronized boolean tryAcquire(String function, int limit, int queue, long timeout) throws WarpScriptException {
+    if (removed) {
+      return false;
+    }
+
+    if (limit <= 0 || active < limit) {
+      active++;
+      return true;
+    }
+
+    if (waiting >= queue || timeout <= 0L) {
+      rejected.incrementAndGet();
+      throw new WarpScriptException(function + " too many concurrent calls on " + name + ", limit is " + limit + ".");
+    }
+
+    long deadline = System.currentTimeMillis() + timeout;
+
+    waiting++;
+
+    boolean acquired = false;
+
+    try {
+      while (active >= limit) {
+        long remaining = deadline - System.currentTimeMillis();
+
+        if (remaining <= 0L) {
+          rejected.incrementAndGet();
+          throw new WarpScriptException(function + " timed out after " + timeout + " ms waiting for one of the " + limit + " slots of " + name + ".");
+        }
+
+        this.wait(remaining);
+      }
+
+      acquired = true;
+    } catch (InterruptedException ie) {
+      rejected.incrementAndGet();
+      Thread.currentThread().interrupt();
+      throw new WarpScriptException(function + " interrupted while waiting for a slot of " + name + ".");
+    } finally {
+      waiting--;
+
+      if (!acquired) {
+        removeIfIdle();
+      }
+    }
+
+    active++;
+    return true;
+  }
+
+  public synchronized void release() {
+    active--;
+    removeIfIdle();
+    // Waiting calls may have different limits, wake them all up
+    this.notifyAll();
+  }
+
+  /**
+   * Remove the limiter of a model once no call is active or waiting on it
+   */
+  private void removeIfIdle() {
+    if (null != model && 0 == active && 0 == waiting) {
+      removed = true;
+      models.remove(model, this);
+    }
+  }
+
+  public static Map<String,Object> getStats() {
+    Map<String,Object> stats = new LinkedHashMap<String,Object>();
+
+    synchronized(global) {
+      stats.put(STATS_ACTIVE, (long) global.active);
+    }
+    stats.put(STATS_REJECTED, rejected.get());
+
+    return stats;
+  }
+}
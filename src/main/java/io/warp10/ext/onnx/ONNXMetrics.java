@@ -0,0 +1,187 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.warp10.sensision.Sensision;
+
+/**
+ * Inference metrics of a model, shared by all the sessions of the model whatever their options.
+ *
+ * Each phase (model load, tensor creation, inference, output conversion) has a latency histogram.
+ * Metrics are exposed by ONNX.STATS and periodically published to Sensision. The metrics of a model
+ * given as BYTES are dropped when its last session is closed.
+ */
+public class ONNXMetrics {
+
+  public static final String PHASE_LOAD = "load";
+  public static final String PHASE_TENSOR = "tensor";
+  public static final String PHASE_RUN = "run";
+  public static final String PHASE_CONVERT = "convert";
+
+  private static final String[] PHASES = { PHASE_LOAD, PHASE_TENSOR, PHASE_RUN, PHASE_CONVERT };
+
+  public static final String STATS_COUNT = "count";
+  public static final String STATS_TIME = "time.us";
+  public static final String STATS_P50 = "p50.us";
+  public static final String STATS_P99 = "p99.us";
+  public static final String STATS_MAX = "max.us";
+  public static final String STATS_INPUT_BYTES = "input.bytes";
+  public static final String STATS_OUTPUT_BYTES = "output.bytes";
+
+  public static final String SENSISION_PREFIX = "warp.ext.onnx.";
+  public static final String SENSISION_LABEL_MODEL = "model";
+  public static final String SENSISION_LABEL_PHASE = "phase";
+
+  private static final ConcurrentHashMap<String,ONNXMetrics> models = new ConcurrentHashMap<String,ONNXMetrics>();
+
+  private final String model;
+  private final Map<String,ONNXHistogram> phases = new LinkedHashMap<String,ONNXHistogram>();
+  private final AtomicLong inputBytes = new AtomicLong(0L);
+  private final AtomicLong outputBytes = new AtomicLong(0L);
+
+  private ONNXMetrics(String model) {
+    this.model = model;
+    for (String phase: PHASES) {
+      phases.put(phase, new ONNXHistogram());
+    }
+  }
+
+  /**
+   * Return the metrics of a model, creating them if needed
+   *
+   * @param model Identity of the model, its path or content hash
+   */
+  public static ONNXMetrics get(String model) {
+    ONNXMetrics metrics = models.get(model);
+
+    if (null == metrics) {
+      metrics = new ONNXMetrics(model);
+      ONNXMetrics previous = models.putIfAbsent(model, metrics);
+      if (null != previous) {
+        metrics = previous;
+      }
+    }
+
+    return metrics;
+  }
+
+  /**
+   * Drop the metrics of a model and clear its Sensision metrics
+   */
+  public static synchronized void remove(String model) {
+    ONNXMetrics metrics = models.remove(model);
+
+    if (null == metrics) {
+      return;
+    }
+
+    Map<String,String> labels = new LinkedHashMap<String,String>();
+    labels.put(SENSISION_LABEL_MODEL, model);
+
+    Sensision.clear(SENSISION_PREFIX + STATS_INPUT_BYTES, labels);
+    Sensision.clear(SENSISION_PREFIX + STATS_OUTPUT_BYTES, labels);
+
+    for (String phase: PHASES) {
+      Map<String,String> phaseLabels = new LinkedHashMap<String,String>(labels);
+      phaseLabels.put(SENSISION_LABEL_PHASE, phase);
+
+      Sensision.clear(SENSISION_PREFIX + STATS_COUNT, phaseLabels);
+      Sensision.clear(SENSISION_PREFIX + STATS_TIME, phaseLabels);
+      Sensision.clear(SENSISION_PREFIX + STATS_P50, phaseLabels);
+      Sensision.clear(SENSISION_PREFIX + STATS_P99, phaseLabels);
+    }
+  }
+
+  public static Map<String,ONNXMetrics> getAll() {
+    return Collections.unmodifiableMap(new TreeMap<String,ONNXMetrics>(models));
+  }
+
+  public String getModel() {
+    return model;
+  }
+
+  /**
+   * Record the duration of a phase which started at the given System.nanoTime
+   */
+  public void record(String phase, long start) {
+    phases.get(phase).record(System.nanoTime() - start);
+  }
+
+  public void addInputBytes(long bytes) {
+    inputBytes.addAndGet(bytes);
+  }
+
+  public void addOutputBytes(long bytes) {
+    outputBytes.addAndGet(bytes);
+  }
+
+  public Map<String,Object> getStats() {
+    Map<String,Object> stats = new LinkedHashMap<String,Object>();
+
+    for (Entry<String,ONNXHistogram> entry: phases.entrySet()) {
+      ONNXHistogram histogram = entry.getValue();
+      Map<String,Object> phase = new LinkedHashMap<String,Object>();
+      phase.put(STATS_COUNT, histogram.getCount());
+      phase.put(STATS_TIME, histogram.getTotal() / 1000L);
+      phase.put(STATS_P50, histogram.percentile(50.0D) / 1000L);
+      phase.put(STATS_P99, histogram.percentile(99.0D) / 1000L);
+      phase.put(STATS_MAX, histogram.getMax() / 1000L);
+      stats.put(entry.getKey(), phase);
+    }
+
+    stats.put(STATS_INPUT_BYTES, inputBytes.get());
+    stats.put(STATS_OUTPUT_BYTES, outputBytes.get());
+
+    return stats;
+  }
+
+  /**
+   * Publish the metrics of all the models to Sensision, synchronized with remove so the metrics of
+   * a removed model are not published again
+   */
+  public static synchronized void publish() {
+    for (ONNXMetrics metrics: models.values()) {
+      Map<String,String> labels = new LinkedHashMap<String,String>();
+      labels.put(SENSISION_LABEL_MODEL, metrics.model);
+
+      Sensision.set(SENSISION_PREFIX + STATS_INPUT_BYTES, labels, metrics.inputBytes.get());
+      Sensision.set(SENSISION_PREFIX + STATS_OUTPUT_BYTES, labels, metrics.outputBytes.get());
+
+      for (Entry<String,ONNXHistogram> entry: metrics.phases.entrySet()) {
+        Map<String,String> phaseLabels = new LinkedHashMap<String,String>(labels);
+        phaseLabels.put(SENSISION_LABEL_PHASE, entry.getKey());
+
+        ONNXHistogram histogram = entry.getValue();
+        Sensision.set(SENSISION_PREFIX + STATS_COUNT, phaseLabels, histogram.getCount());
+        Sensision.set(SENSISION_PREFIX + STATS_TIME, phaseLabels, histogram.getTotal() / 1000L);
+        Sensision.set(SENSISION_PREFIX + STATS_P50, phaseLabels, histogram.percentile(50.0D) / 1000L);
+        Sensision.set(SENSISION_PREFIX + STATS_P99, phaseLabels, histogram.percentile(99.0D) / 1000L);
+      }
+    }
+
+    Sensision.set(SENSISION_PREFIX + ONNXScope.STATS_LIVE, Collections.<String,String>emptyMap(), ONNXScope.getLive());
+    Sensision.set(SENSISION_PREFIX + ONNXScope.STATS_LIVE_BYTES, Collections.<String,String>emptyMap(), ONNXScope.getLiveBytes());
+  }
+}
@@ -0,0 +1,482 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OnnxValue;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.Result;
+import ai.onnxruntime.TensorInfo;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+/**
+ * Merges the concurrent inference requests made on a session into batches.
+ *
+ * The first request of a batch waits until the batch holds maxSize rows or maxWait nanoseconds
+ * have elapsed, it then runs the whole batch in its own thread and hands each request the slice
+ * of the outputs matching its inputs. Requests are only merged with requests whose inputs have
+ * the same types and shapes apart from the batch dimension and which request the same outputs.
+ *
+ * The batch is run under the watchdog on behalf of the stack of its first request, with the
+ * strictest timeout of its requests. The other requests wait for their outputs until their own
+ * timeout expires.
+ */
+public class ONNXMicroBatcher {
+
+  private static class Request {
+    private final Map<String,OnnxTensor> inputs;
+    private final long rows;
+    private final long timeout;
+    private final CompletableFuture<Map<String,OnnxTensor>> outputs = new CompletableFuture<Map<String,OnnxTensor>>();
+
+    /**
+     * Released once the leader no longer reads the inputs of the request
+     */
+    private final CountDownLatch consumed = new CountDownLatch(1);
+
+    private Request(Map<String,OnnxTensor> inputs, long rows, long timeout) {
+      this.inputs = inputs;
+      this.rows = rows;
+      this.timeout = timeout;
+    }
+  }
+
+  private static class Batch {
+    private final Set<String> outputs;
+    private final List<Request> requests = new ArrayList<Request>();
+    private long rows = 0L;
+    private boolean closed = false;
+
+    private Batch(Set<String> outputs) {
+      this.outputs = outputs;
+    }
+  }
+
+  private final OrtSession session;
+  private final int maxSize;
+  private final long maxWait;
+
+  /**
+   * Type and shape of the outputs of the session
+   */
+  private final Map<String,TensorInfo> outputInfo = new HashMap<String,TensorInfo>();
+
+  /**
+   * Batches accepting requests, per input and output signature
+   */
+  private final Map<String,Batch> pending = new HashMap<String,Batch>();
+
+  private final AtomicLong batches = new AtomicLong(0L);
+  private final AtomicLong merged = new AtomicLong(0L);
+
+  /**
+   * @param maxSize Maximum number of rows of a batch
+   * @param maxWait Maximum time in nanoseconds the first request of a batch waits for other requests
+   */
+  public ONNXMicroBatcher(OrtSession session, int maxSize, long maxWait) throws WarpScriptException {
+    this.session = session;
+    this.maxSize = maxSize;
+    this.maxWait = maxWait;
+
+    try {
+      check(session.getInputInfo());
+      check(session.getOutputInfo());
+      for (Entry<String,NodeInfo> entry: session.getOutputInfo().entrySet()) {
+        outputInfo.put(entry.getKey(), (TensorInfo) entry.getValue().getInfo());
+      }
+    } catch (OrtException oe) {
+      throw new WarpScriptException("Unable to retrieve the session inputs and outputs.", oe);
+    }
+  }
+
+  /**
+   * All inputs and outputs must be tensors with a dynamic leading dimension
+   */
+  private static void check(Map<String,NodeInfo> infos) throws WarpScriptException {
+    for (NodeInfo info: infos.values()) {
+      if (!(info.getInfo() instanceof TensorInfo)) {
+        throw new WarpScriptException("Model cannot be micro batched, '" + info.getName() + "' is not a tensor.");
+      }
+      long[] shape = ((TensorInfo) info.getInfo()).getShape();
+      if (0 == shape.length || shape[0] >= 0) {
+        throw new WarpScriptException("Model cannot be micro batched, '" + info.getName() + "' has no dynamic batch dimension.");
+      }
+    }
+  }
+
+  public OrtSession getSession() {
+    return session;
+  }
+
+  /**
+   * Submit a request and wait for its outputs. The caller is responsible for closing the returned tensors.
+   *
+   * @param function Name of the calling function, used in error messages
+   * @param outputNames Outputs to compute, null for all outputs
+   * @param timeout Maximum duration of the request in ms, 0 for no limit
+   * @return The outputs of the request or null if the request could not be merged with others and should be run directly
+   */
+  public Map<String,OnnxTensor> submit(String function, WarpScriptStack stack, Map<String,OnnxTensor> inputs, Set<String> outputNames, long timeout) throws WarpScriptException {
+    long rows = -1L;
+
+    for (OnnxTensor tensor: inputs.values()) {
+      long[] shape = tensor.getInfo().getShape();
+      if (0 == shape.length || (rows >= 0 && rows != shape[0])) {
+        return null;
+      }
+      rows = shape[0];
+    }
+
+    if (rows < 0 || rows >= maxSize || inputs.size() != session.getNumInputs()) {
+      return null;
+    }
+
+    Set<String> outputs = null == outputNames ? session.getOutputNames() : outputNames;
+    String signature = signature(inputs, outputs);
+    long start = System.currentTimeMillis();
+    Request request = new Request(inputs, rows, timeout);
+    Batch batch;
+    boolean leader = false;
+
+    synchronized(this) {
+      batch = pending.get(signature);
+
+      // Close the pending batch if the request does not fit in it
+      if (null != batch && batch.rows + rows > maxSize) {
+        close(signature, batch);
+        batch = null;
+      }
+
+      if (null == batch) {
+        batch = new Batch(outputs);
+        pending.put(signature, batch);
+        leader = true;
+      }
+
+      batch.requests.add(request);
+      batch.rows += rows;
+
+      if (batch.rows >= maxSize) {
+        close(signature, batch);
+      }
+    }
+
+    if (!leader) {
+      return await(function, request, start);
+    }
+
+    //
+    // Wait for the batch to be full or for the maximum wait to expire
+    //
+
+    boolean interrupted = false;
+
+    synchronized(this) {
+      long deadline = System.nanoTime() + maxWait;
+
+      while (!batch.closed) {
+        long remaining = deadline - System.nanoTime();
+
+        if (remaining <= 0) {
+          break;
+        }
+
+        try {
+          this.wait(remaining / 1000000L, (int) (remaining % 1000000L));
+        } catch (InterruptedException ie) {
+          // The batch is run anyway, the other requests depend on it
+          interrupted = true;
+          break;
+        }
+      }
+
+      if (!batch.closed) {
+        close(signature, batch);
+      }
+    }
+
+    try {
+      if (1 == batch.requests.size()) {
+        return null;
+      }
+
+      run(function, stack, batch);
+
+      return await(function, request, start);
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void close(String signature, Batch batch) {
+    batch.closed = true;
+    if (batch == pending.get(signature)) {
+      pending.remove(signature);
+    }
+    this.notifyAll();
+  }
+
+  /**
+   * Wait for the outputs of a request until its timeout expires
+   *
+   * @param start Time in ms the request was submitted at
+   */
+  private Map<String,OnnxTensor> await(String function, Request request, long start) throws WarpScriptException {
+    try {
+      if (request.timeout > 0L) {
+        return request.outputs.get(Math.max(0L, start + request.timeout - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+      }
+      return request.outputs.get();
+    } catch (TimeoutException te) {
+      consumed(request);
+      release(request);
+      throw new WarpScriptException(function + " inference timed out after " + request.timeout + " ms.");
+    } catch (InterruptedException ie) {
+      // The caller closes the inputs once we return, the leader must be done reading them
+      consumed(request);
+      // Release the outputs once they are available
+      release(request);
+      Thread.currentThread().interrupt();
+      throw new WarpScriptException("Interrupted while waiting for batched inference.", ie);
+    } catch (ExecutionException ee) {
+      if (ee.getCause() instanceof WarpScriptException) {
+        throw (WarpScriptException) ee.getCause();
+      }
+      throw new WarpScriptException("Error while performing batched inference.", ee.getCause());
+    }
+  }
+
+  /**
+   * Wait until the leader no longer reads the inputs of a request, whether or not the thread is interrupted
+   */
+  private static void consumed(Request request) {
+    boolean interrupted = false;
+
+    while (true) {
+      try {
+        request.consumed.await();
+        break;
+      } catch (InterruptedException ie) {
+        interrupted = true;
+      }
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Run a batch and complete its requests
+   *
+   * @param stack Stack of the first request, the run is terminated if it is stopped
+   */
+  private void run(String function, WarpScriptStack stack, Batch batch) {
+    Map<String,OnnxTensor> inputs = new HashMap<String,OnnxTensor>();
+    Map<String,OnnxTensor> pinned = new HashMap<String,OnnxTensor>();
+    List<Map<String,OnnxTensor>> outputs = new ArrayList<Map<String,OnnxTensor>>(batch.requests.size());
+
+    try {
+      for (String name: batch.requests.get(0).inputs.keySet()) {
+        List<OnnxTensor> tensors = new ArrayList<OnnxTensor>(batch.requests.size());
+        for (Request request: batch.requests) {
+          tensors.add(request.inputs.get(name));
+        }
+        inputs.put(name, ONNXTensorOps.concat(tensors, 0, null));
+      }
+
+      // The concatenated tensors hold copies of the inputs
+      for (Request request: batch.requests) {
+        request.consumed.countDown();
+      }
+
+      for (int i = 0; i < batch.requests.size(); i++) {
+        outputs.add(new LinkedHashMap<String,OnnxTensor>());
+      }
+
+      // The strictest timeout of the requests applies to the batch
+      long timeout = 0L;
+      for (Request request: batch.requests) {
+        if (request.timeout > 0L && (0L == timeout || request.timeout < timeout)) {
+          timeout = request.timeout;
+        }
+      }
+
+      //
+      // Outputs whose shape is known apart from the batch dimension are written to direct buffers,
+      // so they are sliced without being copied to the heap
+      //
+
+      Set<String> requested = new LinkedHashSet<String>();
+
+      for (String name: batch.outputs) {
+        OnnxTensor output = allocate(outputInfo.get(name), batch.rows);
+        if (null != output) {
+          pinned.put(name, output);
+        } else {
+          requested.add(name);
+        }
+      }
+
+      try (ONNXWatchdog.Watch watch = ONNXWatchdog.watch(function, stack, timeout); Result result = watch.run(session, inputs, requested, pinned)) {
+        for (Entry<String,OnnxValue> entry: result) {
+          OnnxTensor output = (OnnxTensor) entry.getValue();
+          TensorInfo info = output.getInfo();
+
+          if (batch.rows != info.getShape()[0]) {
+            throw new WarpScriptException("Output '" + entry.getKey() + "' does not have one row per input row and cannot be split.");
+          }
+
+          ByteBuffer content = ONNXTensorOps.content(output);
+          long start = 0L;
+
+          for (int i = 0; i < batch.requests.size(); i++) {
+            long end = start + batch.requests.get(i).rows;
+            outputs.get(i).put(entry.getKey(), ONNXTensorOps.slice(content, info.getShape(), info.type, 0, start, end));
+            start = end;
+          }
+        }
+      }
+
+      batches.incrementAndGet();
+      merged.addAndGet(batch.requests.size());
+
+      for (int i = 0; i < batch.requests.size(); i++) {
+        batch.requests.get(i).outputs.complete(outputs.get(i));
+      }
+    } catch (Throwable t) {
+      for (Map<String,OnnxTensor> output: outputs) {
+        release(output);
+      }
+      for (Request request: batch.requests) {
+        request.outputs.completeExceptionally(t);
+      }
+    } finally {
+      for (Request request: batch.requests) {
+        request.consumed.countDown();
+      }
+      for (OnnxTensor tensor: inputs.values()) {
+        tensor.close();
+      }
+      for (OnnxTensor tensor: pinned.values()) {
+        tensor.close();
+      }
+    }
+  }
+
+  /**
+   * Allocate a tensor backed by a direct buffer for an output of the given number of rows, null if
+   * its other dimensions are not known or its type is not numeric
+   */
+  private static OnnxTensor allocate(TensorInfo info, long rows) throws OrtException, WarpScriptException {
+    long[] shape = info.getShape().clone();
+
+    if (OnnxJavaType.STRING == info.type || 0 == info.type.size) {
+      return null;
+    }
+
+    for (int i = 1; i < shape.length; i++) {
+      if (shape[i] < 0) {
+        return null;
+      }
+    }
+
+    shape[0] = rows;
+
+    return new ONNXTensorBuilder(info.type, shape).build();
+  }
+
+  /**
+   * Release the outputs of a request which is no longer waited for once they are available
+   */
+  private static void release(Request request) {
+    request.outputs.thenAccept(new Consumer<Map<String,OnnxTensor>>() {
+      @Override
+      public void accept(Map<String,OnnxTensor> outputs) {
+        release(outputs);
+      }
+    });
+  }
+
+  public static void release(Map<String,OnnxTensor> outputs) {
+    for (OnnxTensor tensor: outputs.values()) {
+      tensor.close();
+    }
+  }
+
+  /**
+   * Types and shapes of the inputs, apart from the batch dimension, and requested outputs
+   */
+  private static String signature(Map<String,OnnxTensor> inputs, Set<String> outputs) {
+    StringBuilder sb = new StringBuilder();
+
+    for (Entry<String,OnnxTensor> entry: new TreeMap<String,OnnxTensor>(inputs).entrySet()) {
+      TensorInfo info = entry.getValue().getInfo();
+      sb.append(entry.getKey()).append(":").append(info.type);
+      long[] shape = info.getShape();
+      for (int i = 1; i < shape.length; i++) {
+        sb.append(",").append(shape[i]);
+      }
+      sb.append(";");
+    }
+
+    for (String output: new TreeSet<String>(outputs)) {
+      sb.append(">").append(output);
+    }
+
+    return sb.toString();
+  }
+
+  /**
+   * Number of batches run
+   */
+  public long getBatches() {
+    return batches.get();
+  }
+
+  /**
+   * Number of requests processed as part of a batch
+   */
+  public long getMerged() {
+    return merged.get();
+  }
+}
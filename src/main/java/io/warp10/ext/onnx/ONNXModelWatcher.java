@@ -0,0 +1,184 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Watches the model root and reloads the cached sessions of a model when its file changes.
+ *
+ * Reloads are delayed until the file has not changed for a while so a model is not loaded while
+ * it is still being written. Replacing a model by renaming a fully written file onto it avoids
+ * loading partial models altogether. Sessions of deleted models are left in the cache.
+ */
+public class ONNXModelWatcher implements Runnable {
+
+  private final WatchService watcher;
+  private final ONNXSessionCache cache;
+  private final long delay;
+  private final int warmup;
+
+  /**
+   * Directories watched, by their watch key
+   */
+  private final Map<WatchKey,Path> dirs = new HashMap<WatchKey,Path>();
+
+  /**
+   * Pending reloads, by model path
+   */
+  private final Map<Path,ScheduledFuture<?>> pending = new HashMap<Path,ScheduledFuture<?>>();
+
+  private final ScheduledExecutorService reloader;
+
+  /**
+   * @param root Model root directory, watched with its sub directories
+   * @param cache Cache whose sessions are reloaded
+   * @param delay Time in ms a model file must be left unchanged before it is reloaded
+   * @param warmup Number of warm-up inferences run on reloaded sessions before they are swapped in
+   */
+  public ONNXModelWatcher(String root, ONNXSessionCache cache, long delay, int warmup) throws IOException {
+    this.watcher = FileSystems.getDefault().newWatchService();
+    this.cache = cache;
+    this.delay = delay;
+    this.warmup = warmup;
+
+    this.reloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r);
+        t.setName("[ONNX Model Reloader]");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+    register(Paths.get(root));
+  }
+
+  /**
+   * Start watching in a daemon thread
+   */
+  public void start() {
+    Thread t = new Thread(this);
+    t.setName("[ONNX Model Watcher]");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  private void register(Path start) throws IOException {
+    Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        dirs.put(key, dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      WatchKey key;
+
+      try {
+        key = watcher.take();
+      } catch (InterruptedException ie) {
+        return;
+      }
+
+      Path dir = dirs.get(key);
+
+      for (WatchEvent<?> event: key.pollEvents()) {
+        if (StandardWatchEventKinds.OVERFLOW == event.kind() || null == dir) {
+          continue;
+        }
+
+        Path path = dir.resolve((Path) event.context());
+
+        if (Files.isDirectory(path)) {
+          if (StandardWatchEventKinds.ENTRY_CREATE == event.kind()) {
+            try {
+              register(path);
+            } catch (IOException ioe) {
+              // The directory will not be watched
+            }
+          }
+        } else if (path.toString().endsWith(".onnx")) {
+          schedule(path);
+        }
+      }
+
+      if (!key.reset()) {
+        dirs.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Schedule the reload of a model, postponing any pending reload of the same model
+   */
+  private void schedule(final Path path) {
+    synchronized(pending) {
+      ScheduledFuture<?> future = pending.get(path);
+
+      if (null != future) {
+        future.cancel(false);
+      }
+
+      // Set before the task can enter the synchronized block, it only removes its own entry
+      final AtomicReference<ScheduledFuture<?>> self = new AtomicReference<ScheduledFuture<?>>();
+
+      future = reloader.schedule(new Runnable() {
+        @Override
+        public void run() {
+          synchronized(pending) {
+            pending.remove(path, self.get());
+          }
+          try {
+            cache.reload(ONNX.getKeyPrefix(path.toFile()), warmup);
+          } catch (Throwable t) {
+            // The model could not be loaded, possibly because it is still being written,
+            // the current sessions are kept until the next change
+          }
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+
+      self.set(future);
+      pending.put(path, future);
+    }
+  }
+}
@@ -0,0 +1,108 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+
+import ai.onnxruntime.OrtException;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+/**
+ * Optimize a model with ONNX Runtime and push the optimized model as BYTES.
+ *
+ * The model is given as BYTES, as a path (STRING) under the model root or in the classpath, or
+ * as a parameter MAP with the model under 'model' and session options, 'optimization' setting the
+ * optimization level. When onnx.optimized.dir is configured the optimized model is also persisted
+ * there, and ONNX will load it instead of optimizing the original model again. Models given as
+ * BYTES are only persisted when 'optimized.persist' is true and onnx.optimized.bytes is set.
+ */
+public class ONNXOPTIMIZE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  public static final String KEY_MODEL = "model";
+
+  public ONNXOPTIMIZE(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Object top = stack.pop();
+
+    Object model;
+    Map<Object,Object> params = null;
+
+    if (top instanceof Map) {
+      params = (Map<Object,Object>) top;
+      model = params.get(KEY_MODEL);
+    } else {
+      model = top;
+    }
+
+    byte[] bytes;
+    boolean persist = true;
+
+    try {
+      if (model instanceof byte[]) {
+        bytes = (byte[]) model;
+        persist = ONNXOptimizer.persistBytes(getName(), params);
+      } else if (model instanceof String) {
+        bytes = read((String) model);
+      } else {
+        throw new WarpScriptException(getName() + " expects a parameter MAP, an ONNX model (BYTES), or a path (STRING) to an ONNX model.");
+      }
+
+      ONNXSessionOptions options = new ONNXSessionOptions(ONNXWarpScriptExtension.getDefaultSessionOptions(), params);
+
+      stack.push(ONNXOptimizer.optimize(bytes, ONNX.sha256(bytes), options, persist));
+    } catch (IOException ioe) {
+      throw new WarpScriptException(getName() + " error optimizing ONNX model.", ioe);
+    } catch (OrtException oe) {
+      throw new WarpScriptException(getName() + " error optimizing ONNX model.", oe);
+    }
+
+    return stack;
+  }
+
+  private byte[] read(String path) throws WarpScriptException, IOException {
+    if (null == ONNXWarpScriptExtension.getModelRoot() && !ONNXWarpScriptExtension.isClassPathEnabled()) {
+      throw new WarpScriptException(getName() + " model loading from directory or classpath not enabled.");
+    }
+
+    ONNX.checkPath(getName(), path);
+
+    if (null != ONNXWarpScriptExtension.getModelRoot()) {
+      File f = new File(ONNXWarpScriptExtension.getModelRoot() + "/" + path);
+      if (f.exists()) {
+        return Files.readAllBytes(f.toPath());
+      }
+    }
+
+    byte[] bytes = ONNXWarpScriptExtension.isClassPathEnabled() ? ONNX.readResource(path) : null;
+
+    if (null == bytes) {
+      throw new WarpScriptException(getName() + " failed to load ONNX model '" + path + "'.");
+    }
+
+    return bytes;
+  }
+}
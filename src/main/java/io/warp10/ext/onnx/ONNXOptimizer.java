@@ -0,0 +1,172 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.SessionOptions;
+import ai.onnxruntime.OrtSession.SessionOptions.OptLevel;
+import io.warp10.script.WarpScriptException;
+
+/**
+ * Persists the graphs optimized by ONNX Runtime so loading a model does not optimize it again.
+ *
+ * Optimized models are stored in the directory configured by onnx.optimized.dir, under a name
+ * derived from the SHA-256 of the original model and the optimization level. When an optimized
+ * model exists it is loaded with graph optimizations disabled.
+ *
+ * Only the models from the model root or the classpath are persisted, models given as BYTES are
+ * persisted only when onnx.optimized.bytes is set and the call requests it, so scripts cannot fill
+ * the directory with arbitrary models.
+ *
+ * Models optimized at the EXTENDED_OPT or ALL_OPT levels may contain nodes specific to the
+ * hardware they were optimized on, the directory should not be shared between different machines.
+ * Files are never removed from the directory.
+ */
+public class ONNXOptimizer {
+
+  /**
+   * Parameter of ONNX and ONNX.OPTIMIZE, set to true to persist the optimized version of a model
+   * given as BYTES, requires ONNXWarpScriptExtension.CONF_OPTIMIZED_BYTES
+   */
+  public static final String KEY_PERSIST = "optimized.persist";
+
+  private static final String EXTENSION = ".onnx";
+
+  /**
+   * Return the file holding the optimized version of a model, null if optimized models are not persisted
+   *
+   * @param hash SHA-256 of the original model
+   */
+  public static File getOptimizedFile(String hash, ONNXSessionOptions options) {
+    String dir = ONNXWarpScriptExtension.getOptimizedDir();
+
+    if (null == dir) {
+      return null;
+    }
+
+    OptLevel level = null == options.getOptLevel() ? OptLevel.ALL_OPT : options.getOptLevel();
+
+    return new File(dir, hash + "." + level.name() + EXTENSION);
+  }
+
+  /**
+   * Return whether the optimized version of a model given as BYTES may be persisted
+   *
+   * @param function Name of the calling function, used in error messages
+   * @param params Parameter MAP of the call, may be null
+   */
+  public static boolean persistBytes(String function, Map<Object,Object> params) throws WarpScriptException {
+    if (null == params || null == params.get(KEY_PERSIST) || Boolean.FALSE.equals(params.get(KEY_PERSIST))) {
+      return false;
+    }
+
+    if (!Boolean.TRUE.equals(params.get(KEY_PERSIST))) {
+      throw new WarpScriptException(function + " expects '" + KEY_PERSIST + "' to be a BOOLEAN.");
+    }
+
+    if (!ONNXWarpScriptExtension.isOptimizedBytesEnabled()) {
+      throw new WarpScriptException(function + " persisting optimized BYTES models is not enabled, set '" + ONNXWarpScriptExtension.CONF_OPTIMIZED_BYTES + "'.");
+    }
+
+    return true;
+  }
+
+  /**
+   * Create a session, loading the optimized version of the model if it was persisted or persisting it otherwise
+   *
+   * @param model Original model
+   * @param hash SHA-256 of the original model
+   * @param persist Whether the optimized model may be persisted, a previously persisted one is used anyway
+   */
+  public static OrtSession createSession(byte[] model, String hash, ONNXSessionOptions options, boolean persist) throws OrtException, IOException {
+    OrtEnvironment env = ONNXWarpScriptExtension.getEnvironment();
+
+    File optimized = getOptimizedFile(hash, options);
+
+    if (null != optimized && optimized.exists()) {
+      try (SessionOptions opts = options.build()) {
+        opts.setOptimizationLevel(OptLevel.NO_OPT);
+        return env.createSession(optimized.getPath(), opts);
+      }
+    }
+
+    if (null == optimized || !persist) {
+      try (SessionOptions opts = options.build()) {
+        return env.createSession(model, opts);
+      }
+    }
+
+    // Write to a temporary file first so concurrent loads never read a partial model
+    File tmp = File.createTempFile(hash, EXTENSION + ".tmp", optimized.getParentFile());
+
+    try (SessionOptions opts = options.build()) {
+      opts.setOptimizedModelFilePath(tmp.getPath());
+      OrtSession session = env.createSession(model, opts);
+      Files.move(tmp.toPath(), optimized.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return session;
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Optimize a model and return the optimized graph, which is also persisted if onnx.optimized.dir is set
+   *
+   * @param model Original model
+   * @param hash SHA-256 of the original model
+   * @param persist Whether the optimized model may be persisted
+   */
+  public static byte[] optimize(byte[] model, String hash, ONNXSessionOptions options, boolean persist) throws OrtException, IOException {
+    File optimized = getOptimizedFile(hash, options);
+
+    if (null != optimized && optimized.exists()) {
+      return Files.readAllBytes(optimized.toPath());
+    }
+
+    if (!persist) {
+      optimized = null;
+    }
+
+    File tmp = File.createTempFile(hash, EXTENSION + ".tmp", null == optimized ? null : optimized.getParentFile());
+
+    try {
+      try (SessionOptions opts = options.build()) {
+        opts.setOptimizedModelFilePath(tmp.getPath());
+        // The optimized graph is written when the session is created
+        ONNXWarpScriptExtension.getEnvironment().createSession(model, opts).close();
+      }
+
+      byte[] bytes = Files.readAllBytes(tmp.toPath());
+
+      if (null != optimized) {
+        Files.move(tmp.toPath(), optimized.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+
+      return bytes;
+    } finally {
+      tmp.delete();
+    }
+  }
+}
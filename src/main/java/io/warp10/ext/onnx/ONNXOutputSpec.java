@@ -0,0 +1,140 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ai.onnxruntime.OnnxValue;
+import ai.onnxruntime.OrtSession;
+import io.warp10.script.WarpScriptException;
+
+/**
+ * Outputs to compute and their formats, as specified by the 'outputs', 'format' and 'formats'
+ * entries of the parameter MAP of the inference functions.
+ */
+public class ONNXOutputSpec {
+
+  /**
+   * Output format applied to outputs with no specific format, defaults to ONNXUtils.FORMAT_LIST
+   */
+  public static final String KEY_FORMAT = "format";
+
+  /**
+   * MAP of output name to output format
+   */
+  public static final String KEY_FORMATS = "formats";
+
+  /**
+   * LIST of the names of the outputs to compute, defaults to all outputs
+   */
+  public static final String KEY_OUTPUTS = "outputs";
+
+  private String defaultFormat = ONNXUtils.FORMAT_LIST;
+  private final Map<Object,Object> formats = new HashMap<Object,Object>();
+  private List<Object> requested = null;
+
+  /**
+   * @param function Name of the calling function, used in error messages
+   * @param params Parameter MAP, may be null
+   */
+  public ONNXOutputSpec(String function, Map<Object,Object> params) throws WarpScriptException {
+    if (null == params) {
+      return;
+    }
+
+    if (null != params.get(KEY_FORMAT)) {
+      defaultFormat = String.valueOf(params.get(KEY_FORMAT));
+    }
+
+    if (params.get(KEY_FORMATS) instanceof Map) {
+      formats.putAll((Map<Object,Object>) params.get(KEY_FORMATS));
+    } else if (null != params.get(KEY_FORMATS)) {
+      throw new WarpScriptException(function + " expects '" + KEY_FORMATS + "' to be a MAP of output name to format.");
+    }
+
+    if (!ONNXUtils.isFormat(defaultFormat)) {
+      throw new WarpScriptException(function + " invalid format '" + defaultFormat + "'.");
+    }
+    for (Object format: formats.values()) {
+      if (!ONNXUtils.isFormat(String.valueOf(format))) {
+        throw new WarpScriptException(function + " invalid format '" + format + "'.");
+      }
+    }
+
+    if (params.get(KEY_OUTPUTS) instanceof List) {
+      requested = (List<Object>) params.get(KEY_OUTPUTS);
+    } else if (null != params.get(KEY_OUTPUTS)) {
+      throw new WarpScriptException(function + " expects '" + KEY_OUTPUTS + "' to be a LIST of output names.");
+    }
+  }
+
+  public boolean hasRequested() {
+    return null != requested;
+  }
+
+  /**
+   * Names of the outputs to compute, all the outputs of the session if none were requested
+   */
+  public Set<String> getOutputNames(String function, OrtSession session) throws WarpScriptException {
+    Set<String> names = new LinkedHashSet<String>();
+
+    if (null == requested) {
+      names.addAll(session.getOutputNames());
+      return names;
+    }
+
+    for (Object name: requested) {
+      if (!session.getOutputNames().contains(name)) {
+        throw new WarpScriptException(function + " unknown output '" + name + "'.");
+      }
+      names.add((String) name);
+    }
+
+    return names;
+  }
+
+  /**
+   * Return true if the default format or the format of an output is the given one
+   */
+  public boolean hasFormat(String format) {
+    if (format.equals(defaultFormat)) {
+      return true;
+    }
+    for (Object f: formats.values()) {
+      if (format.equals(String.valueOf(f))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public String getFormat(String output) {
+    Object format = formats.get(output);
+    return null == format ? defaultFormat : String.valueOf(format);
+  }
+
+  /**
+   * Convert an output using its format
+   */
+  public Object convert(String output, OnnxValue value) throws WarpScriptException {
+    return ONNXUtils.fromONNXValue(value, output, getFormat(output));
+  }
+}
@@ -0,0 +1,255 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ai.onnxruntime.OnnxTensorLike;
+import ai.onnxruntime.OnnxValue;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.Result;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+/**
+ * Run inference on each MAP of a LIST of input MAPs in parallel. The runs are spread over the
+ * pool shared by all the calls (see ONNXWarpScriptExtension.CONF_PARMAP_THREADS), the outputs
+ * are returned in the order of the inputs.
+ */
+public class ONNXPARMAP extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  /**
+   * LIST of MAPs of input tensors
+   */
+  public static final String KEY_INPUTS = ONNXRUN.KEY_INPUTS;
+
+  /**
+   * Maximum number of runs of the call in progress at the same time, defaults to the size of the pool
+   */
+  public static final String KEY_PARALLELISM = "parallelism";
+
+  /**
+   * When true, an item whose inference failed yields the error message as a STRING instead of
+   * failing the whole call
+   */
+  public static final String KEY_ERRORS = "errors";
+
+  public ONNXPARMAP(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+
+    Object top = stack.pop();
+
+    List<Object> items;
+    ONNXOutputSpec spec = new ONNXOutputSpec(getName(), null);
+    int parallelism = ONNXWarpScriptExtension.getParMapThreads();
+    boolean errors = false;
+    long timeout = ONNXWatchdog.getTimeout(getName(), null);
+
+    if (top instanceof List) {
+      items = (List<Object>) top;
+    } else if (top instanceof Map && ((Map) top).get(KEY_INPUTS) instanceof List) {
+      Map<Object,Object> params = (Map<Object,Object>) top;
+      items = (List<Object>) params.get(KEY_INPUTS);
+      spec = new ONNXOutputSpec(getName(), params);
+
+      // Outputs are split or converted off the calling thread, they cannot be kept
+      if (spec.hasFormat(ONNXUtils.FORMAT_TENSOR)) {
+        throw new WarpScriptException(getName() + " does not support the " + ONNXUtils.FORMAT_TENSOR + " format.");
+      }
+
+      if (params.get(KEY_PARALLELISM) instanceof Long) {
+        parallelism = Math.min(parallelism, ((Long) params.get(KEY_PARALLELISM)).intValue());
+      } else if (null != params.get(KEY_PARALLELISM)) {
+        throw new WarpScriptException(getName() + " expects '" + KEY_PARALLELISM + "' to be a LONG.");
+      }
+
+      errors = Boolean.TRUE.equals(params.get(KEY_ERRORS));
+      timeout = ONNXWatchdog.getTimeout(getName(), params);
+    } else {
+      throw new WarpScriptException(getName() + " expects a LIST of MAPs of tensors or a parameter MAP as input.");
+    }
+
+    if (parallelism < 1) {
+      throw new WarpScriptException(getName() + " invalid '" + KEY_PARALLELISM + "', expected a strictly positive value.");
+    }
+
+    top = stack.pop();
+
+    if (!(top instanceof OrtSession)) {
+      throw new WarpScriptException(getName() + " operates on an ONNX session.");
+    }
+
+    final OrtSession session = (OrtSession) top;
+    final Set<String> outputNames = spec.getOutputNames(getName(), session);
+    final ONNXOutputSpec outputSpec = spec;
+    final ONNXScope scope = ONNXScope.check(getName(), stack, session);
+    final ONNXMetrics metrics = scope.getMetrics(session);
+    // Size of the outputs of the runs not yet converted
+    final AtomicLong pending = new AtomicLong(0L);
+    final WarpScriptStack caller = stack;
+    final long runTimeout = timeout;
+
+    List<Map<String,OnnxTensorLike>> inputs = new ArrayList<Map<String,OnnxTensorLike>>(items.size());
+
+    for (Object item: items) {
+      if (!(item instanceof Map)) {
+        throw new WarpScriptException(getName() + " expects each item to be a MAP of tensors.");
+      }
+      inputs.add(ONNXRUN.toTensors(getName(), (Map<Object,Object>) item));
+    }
+
+    //
+    // Submit the runs, at most 'parallelism' of them are queued or running at any time
+    //
+
+    final Semaphore permits = new Semaphore(parallelism);
+    List<Task> tasks = new ArrayList<Task>(inputs.size());
+    List<Future<Map<String,Object>>> futures = new ArrayList<Future<Map<String,Object>>>(inputs.size());
+
+    try {
+      for (final Map<String,OnnxTensorLike> input: inputs) {
+        permits.acquire();
+
+        Task task = new Task(new Callable<Map<String,Object>>() {
+          @Override
+          public Map<String,Object> call() throws Exception {
+            long start = System.nanoTime();
+            // Runs are terminated when the calling stack is stopped
+            try (ONNXWatchdog.Watch watch = ONNXWatchdog.watch(getName(), caller, runTimeout); Result result = watch.run(session, input, outputNames, null)) {
+              if (null != metrics) {
+                metrics.record(ONNXMetrics.PHASE_RUN, start);
+              }
+              // Outputs of concurrent runs count against the budget of the scope until converted
+              long size = ONNXScope.sizeOf(result);
+              try {
+                scope.checkBudget(getName(), pending.addAndGet(size));
+                Map<String,Object> outputs = new LinkedHashMap<String,Object>();
+                for (Entry<String,OnnxValue> entry: result) {
+                  outputs.put(entry.getKey(), outputSpec.convert(entry.getKey(), entry.getValue()));
+                }
+                return outputs;
+              } finally {
+                pending.addAndGet(-size);
+              }
+            } finally {
+              permits.release();
+            }
+          }
+        });
+
+        tasks.add(task);
+        futures.add(ONNXWarpScriptExtension.getParMapExecutor().submit(task));
+      }
+
+      List<Object> results = new ArrayList<Object>(futures.size());
+
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          results.add(futures.get(i).get());
+        } catch (ExecutionException ee) {
+          if (!errors) {
+            throw new WarpScriptException(getName() + " encountered an error while performing inference on item " + i + ".", ee.getCause());
+          }
+          results.add(String.valueOf(ee.getCause().getMessage()));
+        }
+      }
+
+      stack.push(results);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new WarpScriptException(getName() + " interrupted.", ie);
+    } finally {
+      // When exiting early, drop the runs not yet started and wait for the running ones, the input
+      // tensors are closed by the scope right after
+      for (Future<Map<String,Object>> future: futures) {
+        future.cancel(false);
+      }
+      for (Task task: tasks) {
+        task.abort();
+      }
+    }
+
+    return stack;
+  }
+
+  /**
+   * A run which either does not start or is waited for by abort()
+   */
+  private static class Task implements Callable<Map<String,Object>> {
+    private final Callable<Map<String,Object>> run;
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private Task(Callable<Map<String,Object>> run) {
+      this.run = run;
+    }
+
+    @Override
+    public Map<String,Object> call() throws Exception {
+      if (!started.compareAndSet(false, true)) {
+        return null;
+      }
+      try {
+        return run.call();
+      } finally {
+        done.countDown();
+      }
+    }
+
+    /**
+     * Prevent the run from starting, or wait until it is over if it already started
+     */
+    private void abort() {
+      if (started.compareAndSet(false, true)) {
+        return;
+      }
+
+      boolean interrupted = false;
+
+      while (true) {
+        try {
+          done.await();
+          break;
+        } catch (InterruptedException ie) {
+          interrupted = true;
+        }
+      }
+
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,268 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OnnxTensorLike;
+import ai.onnxruntime.OnnxValue;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.Result;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+/**
+ * Run a chain of sessions, feeding the outputs of each stage to the inputs of the next one as they
+ * are, intermediate outputs are neither converted nor copied and never leave native memory.
+ *
+ * The parameter MAP has the inputs of the first stage under 'inputs', as for ONNX.RUN, and the
+ * stages under 'stages'. Each stage is a MAP with the session under 'session', obtained from an
+ * enclosing ONNX macro, and optionally a 'mapping' MAP of output name of the previous stage to
+ * input name of this stage, by default outputs are fed to the inputs with the same name, and
+ * additional 'inputs'. The outputs of the last stage are converted according to 'outputs',
+ * 'format' and 'formats'.
+ */
+public class ONNXPIPELINE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  public static final String KEY_INPUTS = ONNXRUN.KEY_INPUTS;
+
+  /**
+   * LIST of stages
+   */
+  public static final String KEY_STAGES = "stages";
+
+  /**
+   * Session of a stage
+   */
+  public static final String KEY_SESSION = "session";
+
+  /**
+   * MAP of output name of the previous stage to input name of the stage
+   */
+  public static final String KEY_MAPPING = "mapping";
+
+  private static class Stage {
+    private OrtSession session;
+    private Map<String,String> mapping = null;
+    private Map<Object,Object> inputs = null;
+  }
+
+  public ONNXPIPELINE(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Object top = stack.pop();
+
+    if (!(top instanceof Map) || !(((Map) top).get(KEY_STAGES) instanceof List) || ((List) ((Map) top).get(KEY_STAGES)).isEmpty()) {
+      throw new WarpScriptException(getName() + " expects a parameter MAP with a non empty LIST of '" + KEY_STAGES + "'.");
+    }
+
+    Map<Object,Object> params = (Map<Object,Object>) top;
+
+    if (!(params.get(KEY_INPUTS) instanceof Map)) {
+      throw new WarpScriptException(getName() + " expects '" + KEY_INPUTS + "' to be a MAP of input name to tensor or value.");
+    }
+
+    ONNXOutputSpec spec = new ONNXOutputSpec(getName(), params);
+    long timeout = ONNXWatchdog.getTimeout(getName(), params);
+
+    List<Stage> stages = new ArrayList<Stage>();
+
+    for (Object elt: (List) params.get(KEY_STAGES)) {
+      stages.add(stage(elt));
+    }
+
+    ONNXScope scope = ONNXScope.get(stack);
+
+    if (null == scope) {
+      throw new WarpScriptException(getName() + " can only be called within ONNX.");
+    }
+
+    for (Stage stage: stages) {
+      ONNXScope.check(getName(), stack, stage.session);
+    }
+
+    // Tensors created when binding the inputs of a stage
+    List<OnnxTensor> bound = new ArrayList<OnnxTensor>();
+    Result previous = null;
+
+    try {
+      for (int s = 0; s < stages.size(); s++) {
+        Stage stage = stages.get(s);
+        Map<Object,Object> values = new HashMap<Object,Object>();
+
+        if (0 == s) {
+          values.putAll((Map<Object,Object>) params.get(KEY_INPUTS));
+        } else {
+          feed(s, previous, stage, values);
+        }
+
+        if (null != stage.inputs) {
+          values.putAll(stage.inputs);
+        }
+
+        Map<String,OnnxTensorLike> inputs = ONNXBindingPlan.get(getName(), stack, stage.session).bind(getName(), values, bound);
+
+        boolean last = s == stages.size() - 1;
+        Set<String> outputNames = last ? spec.getOutputNames(getName(), stage.session) : requested(s, stage, stages.get(s + 1));
+
+        ONNXMetrics metrics = scope.getMetrics(stage.session);
+        long start = System.nanoTime();
+
+        Result result;
+
+        try (ONNXWatchdog.Watch watch = ONNXWatchdog.watch(getName(), stack, timeout)) {
+          result = watch.run(stage.session, inputs, outputNames, null);
+        } catch (OrtException oe) {
+          throw new WarpScriptException(getName() + " encountered an error while performing inference at stage " + s + ".", oe);
+        }
+
+        if (null != metrics) {
+          metrics.record(ONNXMetrics.PHASE_RUN, start);
+        }
+
+        // The inputs of the stage are no longer needed
+        if (null != previous) {
+          previous.close();
+        }
+        previous = result;
+
+        for (OnnxTensor tensor: bound) {
+          tensor.close();
+        }
+        bound.clear();
+
+        if (!last) {
+          long size = 0L;
+          for (int i = 0; i < result.size(); i++) {
+            size += ONNXScope.sizeOf(result.get(i));
+          }
+          scope.checkBudget(getName(), size);
+        }
+      }
+
+      // The result of the last stage is consumed by the conversion
+      Result result = previous;
+      previous = null;
+
+      ONNXMetrics metrics = scope.getMetrics(stages.get(stages.size() - 1).session);
+      long start = System.nanoTime();
+
+      Map<String,Object> outputs = ONNXRUN.outputs(getName(), scope, result, spec, metrics);
+
+      if (null != metrics) {
+        metrics.record(ONNXMetrics.PHASE_CONVERT, start);
+      }
+
+      stack.push(outputs);
+    } finally {
+      if (null != previous) {
+        previous.close();
+      }
+      for (OnnxTensor tensor: bound) {
+        tensor.close();
+      }
+    }
+
+    return stack;
+  }
+
+  private Stage stage(Object elt) throws WarpScriptException {
+    if (!(elt instanceof Map) || !(((Map) elt).get(KEY_SESSION) instanceof OrtSession)) {
+      throw new WarpScriptException(getName() + " expects each stage to be a MAP with an ONNX session under '" + KEY_SESSION + "'.");
+    }
+
+    Map<Object,Object> map = (Map<Object,Object>) elt;
+    Stage stage = new Stage();
+    stage.session = (OrtSession) map.get(KEY_SESSION);
+
+    if (map.get(KEY_MAPPING) instanceof Map) {
+      stage.mapping = new HashMap<String,String>();
+      for (Entry<Object,Object> entry: ((Map<Object,Object>) map.get(KEY_MAPPING)).entrySet()) {
+        if (!(entry.getKey() instanceof String) || !(entry.getValue() instanceof String)) {
+          throw new WarpScriptException(getName() + " expects '" + KEY_MAPPING + "' to be a MAP of output name to input name.");
+        }
+        stage.mapping.put((String) entry.getKey(), (String) entry.getValue());
+      }
+    } else if (null != map.get(KEY_MAPPING)) {
+      throw new WarpScriptException(getName() + " expects '" + KEY_MAPPING + "' to be a MAP of output name to input name.");
+    }
+
+    if (map.get(KEY_INPUTS) instanceof Map) {
+      stage.inputs = (Map<Object,Object>) map.get(KEY_INPUTS);
+    } else if (null != map.get(KEY_INPUTS)) {
+      throw new WarpScriptException(getName() + " expects the '" + KEY_INPUTS + "' of a stage to be a MAP.");
+    }
+
+    return stage;
+  }
+
+  /**
+   * Outputs of a stage needed by the next one
+   */
+  private Set<String> requested(int s, Stage stage, Stage next) throws WarpScriptException {
+    Set<String> names = new LinkedHashSet<String>();
+
+    if (null != next.mapping) {
+      for (String output: next.mapping.keySet()) {
+        if (!stage.session.getOutputNames().contains(output)) {
+          throw new WarpScriptException(getName() + " unknown output '" + output + "' of stage " + s + ".");
+        }
+        names.add(output);
+      }
+    } else {
+      for (String output: stage.session.getOutputNames()) {
+        if (next.session.getInputNames().contains(output)) {
+          names.add(output);
+        }
+      }
+    }
+
+    if (names.isEmpty()) {
+      throw new WarpScriptException(getName() + " no output of stage " + s + " feeds stage " + (s + 1) + ".");
+    }
+
+    return names;
+  }
+
+  /**
+   * Feed the outputs of the previous stage to the inputs of a stage
+   */
+  private void feed(int s, Result previous, Stage stage, Map<Object,Object> values) throws WarpScriptException {
+    for (Entry<String,OnnxValue> entry: previous) {
+      String input = null == stage.mapping ? entry.getKey() : stage.mapping.get(entry.getKey());
+
+      if (null == input) {
+        continue;
+      }
+
+      values.put(input, entry.getValue());
+    }
+  }
+}
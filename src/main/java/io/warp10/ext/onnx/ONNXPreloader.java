@@ -0,0 +1,228 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.TensorInfo;
+import io.warp10.WarpConfig;
+import io.warp10.ext.onnx.ONNXSessionCache.CachedSession;
+import io.warp10.script.WarpScriptException;
+
+/**
+ * Loads the models listed in the configuration when the extension starts, and warms their
+ * sessions up by running them on synthetic inputs, so the first queries do not pay for model
+ * parsing, graph optimization and the lazy initializations of ONNX Runtime.
+ *
+ * Models are listed as onnx.preload.N = path, with the path relative to onnx.modelroot. Session
+ * options of a model are set by onnx.preload.N.KEY, KEY being one of ONNXSessionOptions.KEYS, and
+ * default to the global ones. ONNX calls with the same options reuse the preloaded session.
+ *
+ * Preloaded sessions are pinned in the cache, they are never evicted.
+ */
+public class ONNXPreloader {
+
+  public static final String CONF_PRELOAD_PREFIX = "onnx.preload.";
+
+  /**
+   * Number of warm-up inferences run on each preloaded session, defaults to 3
+   */
+  public static final String CONF_PRELOAD_WARMUP = "onnx.preload.warmup";
+
+  /**
+   * Number of models loaded in parallel, defaults to the number of processors
+   */
+  public static final String CONF_PRELOAD_THREADS = "onnx.preload.threads";
+
+  private static final int DEFAULT_WARMUP = 3;
+
+  /**
+   * Load and warm up the configured models, returns once all of them are ready
+   */
+  public static void preload() {
+    Properties properties = WarpConfig.getProperties();
+
+    // Models and their session options, ordered by index
+    Map<Long,String> models = new TreeMap<Long,String>();
+    Map<Long,Map<Object,Object>> options = new HashMap<Long,Map<Object,Object>>();
+
+    for (String key: properties.stringPropertyNames()) {
+      if (!key.startsWith(CONF_PRELOAD_PREFIX)) {
+        continue;
+      }
+
+      String[] tokens = key.substring(CONF_PRELOAD_PREFIX.length()).split("\\.", 2);
+
+      long index;
+      try {
+        index = Long.parseLong(tokens[0]);
+      } catch (NumberFormatException nfe) {
+        // onnx.preload.warmup or onnx.preload.threads
+        continue;
+      }
+
+      String value = properties.getProperty(key).trim();
+
+      if (1 == tokens.length) {
+        models.put(index, value);
+      } else {
+        if (!options.containsKey(index)) {
+          options.put(index, new HashMap<Object,Object>());
+        }
+        options.get(index).put(tokens[1], value);
+      }
+    }
+
+    if (models.isEmpty()) {
+      return;
+    }
+
+    String root = ONNXWarpScriptExtension.getModelRoot();
+
+    if (null == root) {
+      throw new RuntimeException("ONNX models can only be preloaded from '" + ONNXWarpScriptExtension.CONF_MODEL_ROOT + "'.");
+    }
+
+    final int warmup = Integer.parseInt(WarpConfig.getProperty(CONF_PRELOAD_WARMUP, Integer.toString(DEFAULT_WARMUP)));
+    int threads = Integer.parseInt(WarpConfig.getProperty(CONF_PRELOAD_THREADS, Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, models.size())));
+
+    try {
+      List<Future<CachedSession>> futures = new ArrayList<Future<CachedSession>>();
+
+      for (Entry<Long,String> entry: models.entrySet()) {
+        String path = entry.getValue();
+
+        if (!path.endsWith(".onnx") || path.contains("./") || path.startsWith("/")) {
+          throw new RuntimeException("Invalid ONNX model path '" + path + "' in '" + CONF_PRELOAD_PREFIX + entry.getKey() + "'.");
+        }
+
+        final File f = new File(root + "/" + path);
+
+        if (!f.exists()) {
+          throw new RuntimeException("ONNX model '" + path + "' not found in '" + root + "'.");
+        }
+
+        final ONNXSessionOptions sessionOptions;
+        try {
+          sessionOptions = new ONNXSessionOptions(ONNXWarpScriptExtension.getDefaultSessionOptions(), options.get(entry.getKey()));
+        } catch (WarpScriptException wse) {
+          throw new RuntimeException("Invalid session options for ONNX model '" + path + "'.", wse);
+        }
+
+        futures.add(executor.submit(new Callable<CachedSession>() {
+          @Override
+          public CachedSession call() throws Exception {
+            CachedSession cs = ONNX.acquire(f, sessionOptions);
+            try {
+              ONNXWarpScriptExtension.getSessionCache().pin(cs);
+              for (int i = 0; i < warmup; i++) {
+                if (!warmup(cs.getSession())) {
+                  break;
+                }
+              }
+              return cs;
+            } finally {
+              ONNXWarpScriptExtension.getSessionCache().release(cs);
+            }
+          }
+        }));
+      }
+
+      for (Future<CachedSession> future: futures) {
+        try {
+          future.get();
+        } catch (ExecutionException ee) {
+          throw new RuntimeException("Error preloading ONNX model.", ee.getCause());
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException("Interrupted while preloading ONNX models.", ie);
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Run the session once on zero filled inputs shaped after the input info, dynamic dimensions
+   * being set to 1.
+   *
+   * Warming up is best effort, it is skipped for models with non tensor inputs and errors are
+   * ignored as synthetic inputs may not satisfy the constraints of every model.
+   *
+   * @return false if the session cannot be warmed up
+   */
+  static boolean warmup(OrtSession session) {
+    Map<String,OnnxTensor> inputs = new HashMap<String,OnnxTensor>();
+
+    try {
+      for (Entry<String,NodeInfo> entry: session.getInputInfo().entrySet()) {
+        if (!(entry.getValue().getInfo() instanceof TensorInfo)) {
+          return false;
+        }
+
+        TensorInfo info = (TensorInfo) entry.getValue().getInfo();
+        long[] shape = info.getShape().clone();
+
+        for (int i = 0; i < shape.length; i++) {
+          if (shape[i] < 0) {
+            shape[i] = 1;
+          }
+        }
+
+        if (OnnxJavaType.STRING == info.type) {
+          String[] empty = new String[ONNXTensorBuilder.elements(shape)];
+          Arrays.fill(empty, "");
+          inputs.put(entry.getKey(), OnnxTensor.createTensor(ONNXWarpScriptExtension.getEnvironment(), empty, shape));
+        } else {
+          inputs.put(entry.getKey(), new ONNXTensorBuilder(info.type, shape).build());
+        }
+      }
+
+      session.run(inputs).close();
+      return true;
+    } catch (OrtException oe) {
+      return false;
+    } catch (WarpScriptException wse) {
+      return false;
+    } finally {
+      for (OnnxTensor tensor: inputs.values()) {
+        tensor.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,170 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import io.warp10.json.JsonUtils;
+import io.warp10.script.WarpScriptException;
+
+/**
+ * Collects the profile ONNX Runtime records for a profiled session, either as the raw chrome
+ * trace (JSON) or as a per operator summary.
+ */
+public class ONNXProfile {
+
+  /**
+   * Return the raw chrome trace as a STRING
+   */
+  public static final String TRACE = "trace";
+
+  /**
+   * Return a MAP summarizing the time spent per operator type
+   */
+  public static final String SUMMARY = "summary";
+
+  public static final String KEY_RUNS = "runs";
+  public static final String KEY_RUN_TIME = "run.us";
+  public static final String KEY_OPS = "ops";
+  public static final String KEY_CALLS = "calls";
+  public static final String KEY_TIME = "time.us";
+  public static final String KEY_SHARE = "share";
+
+  private static final String EVENT_MODEL_RUN = "model_run";
+  private static final String EVENT_KERNEL_SUFFIX = "_kernel_time";
+
+  /**
+   * Return a unique prefix for the profiling file of a session
+   */
+  public static String prefix() {
+    return new File(System.getProperty("java.io.tmpdir"), "onnx-profile-" + UUID.randomUUID().toString()).getPath();
+  }
+
+  /**
+   * Stop profiling and return the profile of the session in the given mode, the profiling file is deleted
+   */
+  public static Object collect(OrtSession session, String mode) throws OrtException, IOException, WarpScriptException {
+    File file = new File(session.endProfiling());
+
+    try {
+      String trace = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+
+      if (TRACE.equals(mode)) {
+        return trace;
+      }
+
+      return summarize(trace);
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Stop profiling and delete the profiling file
+   */
+  public static void discard(OrtSession session) {
+    try {
+      new File(session.endProfiling()).delete();
+    } catch (OrtException oe) {
+      // Nothing more can be done
+    }
+  }
+
+  private static Map<String,Object> summarize(String trace) throws IOException, WarpScriptException {
+    Object events = JsonUtils.jsonToObject(trace);
+
+    if (!(events instanceof List)) {
+      throw new WarpScriptException("Unexpected ONNX Runtime profile format.");
+    }
+
+    long runs = 0L;
+    long runTime = 0L;
+    long total = 0L;
+
+    final Map<String,long[]> ops = new HashMap<String,long[]>();
+
+    for (Object o: (List<Object>) events) {
+      if (!(o instanceof Map)) {
+        continue;
+      }
+
+      Map<String,Object> event = (Map<String,Object>) o;
+      Object name = event.get("name");
+      long dur = event.get("dur") instanceof Number ? ((Number) event.get("dur")).longValue() : 0L;
+
+      if (EVENT_MODEL_RUN.equals(name)) {
+        runs++;
+        runTime += dur;
+      } else if ("Node".equals(event.get("cat")) && name instanceof String && ((String) name).endsWith(EVENT_KERNEL_SUFFIX) && event.get("args") instanceof Map) {
+        Object op = ((Map<String,Object>) event.get("args")).get("op_name");
+
+        if (!(op instanceof String)) {
+          continue;
+        }
+
+        long[] stats = ops.get(op);
+        if (null == stats) {
+          stats = new long[2];
+          ops.put((String) op, stats);
+        }
+        stats[0]++;
+        stats[1] += dur;
+        total += dur;
+      }
+    }
+
+    // Most expensive operators first
+    List<String> names = new ArrayList<String>(ops.keySet());
+    Collections.sort(names, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        return Long.compare(ops.get(b)[1], ops.get(a)[1]);
+      }
+    });
+
+    Map<String,Object> summary = new LinkedHashMap<String,Object>();
+    summary.put(KEY_RUNS, runs);
+    summary.put(KEY_RUN_TIME, runTime);
+
+    Map<String,Object> perOp = new LinkedHashMap<String,Object>();
+    for (String op: names) {
+      long[] stats = ops.get(op);
+      Map<String,Object> entry = new LinkedHashMap<String,Object>();
+      entry.put(KEY_CALLS, stats[0]);
+      entry.put(KEY_TIME, stats[1]);
+      entry.put(KEY_SHARE, 0L == total ? 0.0D : (double) stats[1] / total);
+      perOp.put(op, entry);
+    }
+    summary.put(KEY_OPS, perOp);
+
+    return summary;
+  }
+}
@@ -0,0 +1,72 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.util.List;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtException;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+/**
+ * Reshape a numeric tensor without converting its content. The shape is a LIST of LONGs, one of
+ * which may be -1 to infer it from the number of elements. The new tensor shares the content of
+ * tensors created by the extension, and is closed at the end of the enclosing ONNX macro.
+ */
+public class ONNXRESHAPE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  public ONNXRESHAPE(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Object top = stack.pop();
+
+    if (!(top instanceof List)) {
+      throw new WarpScriptException(getName() + " expects a shape (LIST).");
+    }
+
+    List<Object> list = (List<Object>) top;
+    long[] shape = new long[list.size()];
+    for (int i = 0; i < shape.length; i++) {
+      if (!(list.get(i) instanceof Long)) {
+        throw new WarpScriptException(getName() + " shape has a non LONG object at pos " + i + ".");
+      }
+      shape[i] = (Long) list.get(i);
+    }
+
+    OnnxTensor tensor = ONNXTensorOps.checkTensor(getName(), stack.pop());
+
+    OnnxTensor reshaped;
+
+    try {
+      reshaped = ONNXTensorOps.reshape(tensor, shape);
+    } catch (OrtException oe) {
+      throw new WarpScriptException(getName() + " error while reshaping tensor.", oe);
+    }
+
+    ONNXScope.register(stack, getName(), reshaped);
+
+    stack.push(reshaped);
+
+    return stack;
+  }
+}
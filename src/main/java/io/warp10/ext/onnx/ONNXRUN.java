@@ -16,13 +16,16 @@
 
 package io.warp10.ext.onnx;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Map.Entry;
 
 import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OnnxTensorLike;
 import ai.onnxruntime.OnnxValue;
 import ai.onnxruntime.OrtException;
 import ai.onnxruntime.OrtSession;
@@ -33,6 +36,32 @@ import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStackFunction;
 
 public class ONNXRUN extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  /**
+   * MAP of input name to tensor, or to a vector, LIST, GTS or LIST of GTS converted by ONNXBindingPlan
+   */
+  public static final String KEY_INPUTS = "inputs";
+
+  public static final String KEY_FORMAT = ONNXOutputSpec.KEY_FORMAT;
+  public static final String KEY_FORMATS = ONNXOutputSpec.KEY_FORMATS;
+  public static final String KEY_OUTPUTS = ONNXOutputSpec.KEY_OUTPUTS;
+
+  /**
+   * MAP of output name to preallocated tensor the output is written to
+   */
+  public static final String KEY_PINNED = "pinned";
+
+  /**
+   * Maximum duration of the inference in ms, can only lower ONNXWarpScriptExtension.CONF_RUN_TIMEOUT
+   */
+  public static final String KEY_TIMEOUT = "timeout";
+
+  /**
+   * Policy used to align GTS inputs with different ticks, and value used by the 'value' policy
+   */
+  public static final String KEY_FILL = ONNXTENSOR.KEY_FILL;
+  public static final String KEY_FILL_VALUE = ONNXTENSOR.KEY_FILL_VALUE;
+
   public ONNXRUN(String name) {
     super(name);
   }
@@ -43,11 +72,44 @@ public class ONNXRUN extends NamedWarpScriptFunction implements WarpScriptStackF
     Object top = stack.pop();
     
     if (!(top instanceof Map)) {
-      throw new WarpScriptException(getName() + " expects a MAP of tensors as input.");
+      throw new WarpScriptException(getName() + " expects a MAP of tensors or a parameter MAP as input.");
     }
     
     Map<Object,Object> tensors = (Map<Object,Object>) top;
     
+    ONNXOutputSpec spec = new ONNXOutputSpec(getName(), null);
+    Map<Object,Object> pinnedTensors = null;
+    long timeout = ONNXWatchdog.getTimeout(getName(), null);
+    String fill = ONNXGTSUtils.FILL_NONE;
+    double fillValue = 0.0D;
+    
+    // A parameter MAP has an 'inputs' entry holding the input tensors
+    if (tensors.get(KEY_INPUTS) instanceof Map) {
+      Map<Object,Object> params = tensors;
+      tensors = (Map<Object,Object>) params.get(KEY_INPUTS);
+      spec = new ONNXOutputSpec(getName(), params);
+      timeout = ONNXWatchdog.getTimeout(getName(), params);
+      
+      if (params.get(KEY_PINNED) instanceof Map) {
+        pinnedTensors = (Map<Object,Object>) params.get(KEY_PINNED);
+      } else if (null != params.get(KEY_PINNED)) {
+        throw new WarpScriptException(getName() + " expects '" + KEY_PINNED + "' to be a MAP of output name to tensor.");
+      }
+      
+      if (null != params.get(KEY_FILL)) {
+        fill = String.valueOf(params.get(KEY_FILL));
+        if (!ONNXGTSUtils.isFill(fill)) {
+          throw new WarpScriptException(getName() + " invalid '" + KEY_FILL + "' policy '" + fill + "'.");
+        }
+      }
+      
+      if (params.get(KEY_FILL_VALUE) instanceof Number) {
+        fillValue = ((Number) params.get(KEY_FILL_VALUE)).doubleValue();
+      } else if (null != params.get(KEY_FILL_VALUE)) {
+        throw new WarpScriptException(getName() + " expects '" + KEY_FILL_VALUE + "' to be numeric.");
+      }
+    }
+    
     top = stack.pop();
     
     if (!(top instanceof OrtSession)) {
@@ -56,41 +118,222 @@ public class ONNXRUN extends NamedWarpScriptFunction implements WarpScriptStackF
     
     OrtSession session = (OrtSession) top;
     
-    Map<String,OnnxTensor> inputs = new HashMap<String,OnnxTensor>(tensors.size());
+    Map<String,OnnxTensorLike> pinned = null == pinnedTensors ? null : toTensors(getName(), pinnedTensors);
     
-    for (Entry<Object,Object> entry: tensors.entrySet()) {
-      if (!(entry.getKey() instanceof String)) {
-        throw new WarpScriptException(getName() + " tensor keys are expected to be STRINGs.");
+    // Inputs which are not tensors are converted to the type and shape the session expects
+    List<OnnxTensor> bound = new ArrayList<OnnxTensor>();
+    long begin = System.nanoTime();
+    
+    try {
+      Map<String,OnnxTensorLike> inputs = ONNXBindingPlan.get(getName(), stack, session).bind(getName(), tensors, bound, fill, fillValue);
+      
+      ONNXMetrics metrics = ONNXScope.getMetrics(stack, session);
+      if (!bound.isEmpty() && null != metrics) {
+        metrics.record(ONNXMetrics.PHASE_TENSOR, begin);
       }
       
-      if (!(entry.getValue() instanceof OnnxTensor)) {
-        throw new WarpScriptException(getName() + " invalid value for key '" + entry.getKey() + "', not an ONNX tensor.");
+      return run(stack, session, inputs, pinned, spec, timeout);
+    } finally {
+      for (OnnxTensor tensor: bound) {
+        tensor.close();
       }
+    }
+  }
+  
+  private Object run(WarpScriptStack stack, OrtSession session, Map<String,OnnxTensorLike> inputs, Map<String,OnnxTensorLike> pinned, ONNXOutputSpec spec, long timeout) throws WarpScriptException {
+    
+    //
+    // Determine the outputs to compute, pinned outputs are always computed and
+    // must not be part of the requested outputs
+    //
+    
+    Set<String> outputNames = null;
+    
+    if (spec.hasRequested() || null != pinned) {
+      outputNames = spec.getOutputNames(getName(), session);
       
-      inputs.put((String) entry.getKey(), (OnnxTensor) entry.getValue()); 
+      if (null != pinned) {
+        for (String name: pinned.keySet()) {
+          if (!session.getOutputNames().contains(name)) {
+            throw new WarpScriptException(getName() + " unknown pinned output '" + name + "'.");
+          }
+        }
+        outputNames.removeAll(pinned.keySet());
+      }
     }
     
-    try {
-      Result result = session.run(inputs);
+    //
+    // Calls on a session with micro batching enabled are merged with concurrent calls
+    //
+    
+    ONNXScope scope = ONNXScope.get(stack);
+    // Only dense inputs can be batched
+    Map<String,OnnxTensor> dense = dense(inputs);
+    // Outputs in the TENSOR format must outlive the run, which batched outputs do not
+    boolean keep = spec.hasFormat(ONNXUtils.FORMAT_TENSOR);
+    if (keep && null == scope) {
+      throw new WarpScriptException(getName() + " the " + ONNXUtils.FORMAT_TENSOR + " format is only available within ONNX.");
+    }
+    ONNXMicroBatcher batcher = null == scope || null != pinned || null == dense || keep ? null : scope.getBatcher(session);
+    ONNXMetrics metrics = null == scope ? null : scope.getMetrics(session);
+    
+    if (null != metrics) {
+      for (OnnxTensorLike tensor: inputs.values()) {
+        metrics.addInputBytes(ONNXScope.sizeOf(tensor));
+      }
+    }
+    
+    long start = System.nanoTime();
+    
+    if (null != batcher) {
+      Map<String,OnnxTensor> batched = batcher.submit(getName(), stack, dense, outputNames, timeout);
       
-      Iterator<Entry<String,OnnxValue>> iterator = result.iterator();
+      if (null != batched) {
+        try {
+          if (null != scope) {
+            long size = 0L;
+            for (OnnxTensor tensor: batched.values()) {
+              size += ONNXScope.sizeOf(tensor);
+            }
+            scope.checkBudget(getName(), size);
+          }
+
+          if (null != metrics) {
+            metrics.record(ONNXMetrics.PHASE_RUN, start);
+            start = System.nanoTime();
+          }
+          
+          Map<String,Object> outputs = new LinkedHashMap<String,Object>();
+          
+          for (Entry<String,OnnxTensor> entry: batched.entrySet()) {
+            if (null != metrics) {
+              metrics.addOutputBytes(ONNXScope.sizeOf(entry.getValue()));
+            }
+            outputs.put(entry.getKey(), spec.convert(entry.getKey(), entry.getValue()));
+          }
+          
+          if (null != metrics) {
+            metrics.record(ONNXMetrics.PHASE_CONVERT, start);
+          }
+          
+          stack.push(outputs);
+        } finally {
+          ONNXMicroBatcher.release(batched);
+        }
+        
+        return stack;
+      }
+    }
+    
+    // The run is terminated if the stack is stopped or the timeout expires
+    Result result;
+    
+    try (ONNXWatchdog.Watch watch = ONNXWatchdog.watch(getName(), stack, timeout)) {
+      result = watch.run(session, inputs, outputNames, pinned);
+    } catch (OrtException oe) {
+      throw new WarpScriptException(getName() + " encountered an error while performing inference.", oe);
+    }
+    
+    if (null != metrics) {
+      metrics.record(ONNXMetrics.PHASE_RUN, start);
+      start = System.nanoTime();
+    }
+    
+    Map<String,Object> outputs = outputs(getName(), scope, result, spec, metrics);
+    
+    if (null != metrics) {
+      metrics.record(ONNXMetrics.PHASE_CONVERT, start);
+    }
+    
+    stack.push(outputs);
+    
+    return stack;
+  }
+  
+  /**
+   * Convert the outputs of a result and close it. Outputs in the TENSOR format are not converted
+   * but registered in the scope, which closes them at the end of the ONNX macro. The other outputs
+   * are closed as soon as they have been converted, pinned outputs are not owned by the result.
+   *
+   * @param function Name of the calling function, used in error messages
+   * @param scope Current scope, may be null if no output is in the TENSOR format
+   */
+  static Map<String,Object> outputs(String function, ONNXScope scope, Result result, ONNXOutputSpec spec, ONNXMetrics metrics) throws WarpScriptException {
+    boolean[] kept = new boolean[result.size()];
+    
+    try {
+      // Outputs count against the budget of the scope until converted
+      if (null != scope) {
+        scope.checkBudget(function, ONNXScope.sizeOf(result));
+      }
       
       Map<String,Object> outputs = new LinkedHashMap<String,Object>();
       
-      while(iterator.hasNext()) {
-        Entry<String,OnnxValue> entry = iterator.next();
+      int i = 0;
+      for (Entry<String,OnnxValue> entry: result) {
+        if (null != metrics) {
+          metrics.addOutputBytes(ONNXScope.sizeOf(entry.getValue()));
+        }
+        
+        if (ONNXUtils.FORMAT_TENSOR.equals(spec.getFormat(entry.getKey())) && result.isResultOwner(i)) {
+          scope.register(entry.getValue());
+          kept[i] = true;
+        }
         
-        OnnxValue value = entry.getValue();
-                
-        outputs.put(entry.getKey(), ONNXUtils.fromONNXValue(value));
+        outputs.put(entry.getKey(), spec.convert(entry.getKey(), entry.getValue()));
+        i++;
       }
       
-      stack.push(outputs);
-    } catch (OrtException oe) {
-      throw new WarpScriptException(getName() + " encountered an error while performing inference.", oe);
+      return outputs;
+    } finally {
+      for (int i = 0; i < result.size(); i++) {
+        if (result.isResultOwner(i) && !kept[i]) {
+          ONNXScope.close(null, result.get(i));
+        }
+      }
     }
+  }
+  
+  /**
+   * Check a MAP of tensors, keys must be STRINGs and tensors must not have been closed
+   *
+   * @param function Name of the calling function, used in error messages
+   */
+  static Map<String,OnnxTensorLike> toTensors(String function, Map<Object,Object> tensors) throws WarpScriptException {
+    Map<String,OnnxTensorLike> result = new HashMap<String,OnnxTensorLike>(tensors.size());
     
-    return stack;
+    for (Entry<Object,Object> entry: tensors.entrySet()) {
+      if (!(entry.getKey() instanceof String)) {
+        throw new WarpScriptException(function + " tensor keys are expected to be STRINGs.");
+      }
+      
+      if (!(entry.getValue() instanceof OnnxTensorLike)) {
+        throw new WarpScriptException(function + " invalid value for key '" + entry.getKey() + "', not an ONNX tensor.");
+      }
+
+      if (ONNXScope.isClosed(entry.getValue())) {
+        throw new WarpScriptException(function + " tensor for key '" + entry.getKey() + "' was closed.");
+      }
+      
+      result.put((String) entry.getKey(), (OnnxTensorLike) entry.getValue()); 
+    }
+    
+    return result;
   }
   
+  /**
+   * Return the inputs as dense tensors, null if some of them are sparse
+   */
+  private static Map<String,OnnxTensor> dense(Map<String,OnnxTensorLike> inputs) {
+    Map<String,OnnxTensor> dense = new HashMap<String,OnnxTensor>(inputs.size());
+    
+    for (Entry<String,OnnxTensorLike> entry: inputs.entrySet()) {
+      if (!(entry.getValue() instanceof OnnxTensor)) {
+        return null;
+      }
+      dense.put(entry.getKey(), (OnnxTensor) entry.getValue());
+    }
+    
+    return dense;
+  }
 }
@@ -0,0 +1,63 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtException;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+/**
+ * Extract the elements [start,end[ along an axis of a numeric tensor without converting its content.
+ * Negative start and end are counted from the end of the dimension. The new tensor is closed at the
+ * end of the enclosing ONNX macro.
+ */
+public class ONNXSLICE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  public ONNXSLICE(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Object end = stack.pop();
+    Object start = stack.pop();
+    Object axis = stack.pop();
+
+    if (!(axis instanceof Long) || !(start instanceof Long) || !(end instanceof Long)) {
+      throw new WarpScriptException(getName() + " expects an axis, a start and an end (LONGs) after the tensor.");
+    }
+
+    OnnxTensor tensor = ONNXTensorOps.checkTensor(getName(), stack.pop());
+
+    OnnxTensor sliced;
+
+    try {
+      sliced = ONNXTensorOps.slice(tensor, ((Long) axis).intValue(), (Long) start, (Long) end);
+    } catch (OrtException oe) {
+      throw new WarpScriptException(getName() + " error while slicing tensor.", oe);
+    }
+
+    ONNXScope.register(stack, getName(), sliced);
+
+    stack.push(sliced);
+
+    return stack;
+  }
+}
@@ -0,0 +1,62 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+/**
+ * Push onto the stack a MAP of statistics about the ONNX extension
+ */
+public class ONNXSTATS extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  /**
+   * Per model inference metrics, keyed by model identity
+   */
+  public static final String STATS_MODELS = "models";
+
+  public ONNXSTATS(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Map<String,Object> stats = new LinkedHashMap<String,Object>();
+
+    stats.putAll(ONNXWarpScriptExtension.getSessionCache().getStats());
+    stats.put(ONNXScope.STATS_LIVE, ONNXScope.getLive());
+    stats.put(ONNXScope.STATS_LIVE_BYTES, ONNXScope.getLiveBytes());
+    stats.putAll(ONNXLimiter.getStats());
+    stats.put(ONNXWatchdog.STATS_TERMINATED, ONNXWatchdog.getTerminated());
+
+    Map<String,Object> models = new LinkedHashMap<String,Object>();
+    for (Entry<String,ONNXMetrics> entry: ONNXMetrics.getAll().entrySet()) {
+      models.put(entry.getKey(), entry.getValue().getStats());
+    }
+    stats.put(STATS_MODELS, models);
+
+    stack.push(stats);
+
+    return stack;
+  }
+}
@@ -0,0 +1,420 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OnnxValue;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.Result;
+import ai.onnxruntime.TensorInfo;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+/**
+ * Run a recurrent model over a GTS, or a LIST of GTS aligned on their ticks, chunk by chunk.
+ *
+ * Each chunk of the series is fed to the sequence input as [1,T,C] (input of rank 3) or [T,C]
+ * (input of rank 2). State outputs are fed back to their state inputs for the next chunk without
+ * leaving native memory, the result holding them is only closed once the next chunk has run. The
+ * final state is returned as ONNX.TENSOR parameter MAPs so processing can resume later.
+ */
+public class ONNXSTREAM extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  public static final String KEY_GTS = ONNXWINDOW.KEY_GTS;
+
+  /**
+   * Name of the sequence input, defaults to the only input which is not a state input
+   */
+  public static final String KEY_INPUT = "input";
+
+  /**
+   * Name of the output converted to GTS, one row per step, optional
+   */
+  public static final String KEY_OUTPUT = "output";
+
+  /**
+   * MAP of state output name to the name of the state input it is fed to
+   */
+  public static final String KEY_STATE = "state";
+
+  /**
+   * MAP of state input name to its initial value, a tensor or an ONNX.TENSOR parameter MAP with BYTES data
+   * as exported by a previous call. State inputs with no initial value start zero filled.
+   */
+  public static final String KEY_INITIAL = "initial";
+
+  /**
+   * Number of steps per run, defaults to ONNXWarpScriptExtension.CONF_BATCH_MAXSIZE
+   */
+  public static final String KEY_CHUNK = ONNXWINDOW.KEY_CHUNK;
+
+  public static final String KEY_FILL = ONNXTENSOR.KEY_FILL;
+  public static final String KEY_FILL_VALUE = ONNXTENSOR.KEY_FILL_VALUE;
+
+  /**
+   * Result entry holding the output GTS
+   */
+  public static final String RESULT_GTS = "gts";
+
+  /**
+   * Result entry holding the final state
+   */
+  public static final String RESULT_STATE = "state";
+
+  public ONNXSTREAM(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+
+    Object top = stack.pop();
+
+    if (!(top instanceof Map)) {
+      throw new WarpScriptException(getName() + " expects a parameter MAP.");
+    }
+
+    Map<Object,Object> params = (Map<Object,Object>) top;
+
+    top = stack.pop();
+
+    if (!(top instanceof OrtSession)) {
+      throw new WarpScriptException(getName() + " operates on an ONNX session.");
+    }
+
+    OrtSession session = (OrtSession) top;
+    ONNXScope scope = ONNXScope.check(getName(), stack, session);
+    ONNXMetrics metrics = scope.getMetrics(session);
+    long timeout = ONNXWatchdog.getTimeout(getName(), params);
+
+    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
+
+    if (params.get(KEY_GTS) instanceof GeoTimeSerie) {
+      series.add((GeoTimeSerie) params.get(KEY_GTS));
+    } else if (params.get(KEY_GTS) instanceof List && !((List) params.get(KEY_GTS)).isEmpty()) {
+      for (Object elt: (List) params.get(KEY_GTS)) {
+        if (!(elt instanceof GeoTimeSerie)) {
+          throw new WarpScriptException(getName() + " expects '" + KEY_GTS + "' to be a GTS or a LIST of GTS.");
+        }
+        series.add((GeoTimeSerie) elt);
+      }
+    } else {
+      throw new WarpScriptException(getName() + " expects '" + KEY_GTS + "' to be a GTS or a non empty LIST of GTS.");
+    }
+
+    if (!(params.get(KEY_STATE) instanceof Map)) {
+      throw new WarpScriptException(getName() + " expects '" + KEY_STATE + "' to be a MAP of state output name to state input name.");
+    }
+
+    Map<String,String> stateMapping = new LinkedHashMap<String,String>();
+
+    for (Entry<Object,Object> entry: ((Map<Object,Object>) params.get(KEY_STATE)).entrySet()) {
+      if (!(entry.getKey() instanceof String) || !(entry.getValue() instanceof String)) {
+        throw new WarpScriptException(getName() + " expects '" + KEY_STATE + "' to be a MAP of state output name to state input name.");
+      }
+      if (!session.getOutputNames().contains(entry.getKey())) {
+        throw new WarpScriptException(getName() + " unknown state output '" + entry.getKey() + "'.");
+      }
+      stateMapping.put((String) entry.getKey(), (String) entry.getValue());
+    }
+
+    Map<Object,Object> initial = new HashMap<Object,Object>();
+
+    if (params.get(KEY_INITIAL) instanceof Map) {
+      initial.putAll((Map<Object,Object>) params.get(KEY_INITIAL));
+    } else if (null != params.get(KEY_INITIAL)) {
+      throw new WarpScriptException(getName() + " expects '" + KEY_INITIAL + "' to be a MAP of state input name to initial state.");
+    }
+
+    int chunk = ONNXWarpScriptExtension.getBatchMaxSize();
+
+    if (params.get(KEY_CHUNK) instanceof Long) {
+      chunk = ((Long) params.get(KEY_CHUNK)).intValue();
+    } else if (null != params.get(KEY_CHUNK)) {
+      throw new WarpScriptException(getName() + " expects '" + KEY_CHUNK + "' to be a LONG.");
+    }
+
+    if (chunk < 1) {
+      throw new WarpScriptException(getName() + " expects a strictly positive '" + KEY_CHUNK + "'.");
+    }
+
+    String fill = null == params.get(KEY_FILL) ? ONNXGTSUtils.FILL_NONE : String.valueOf(params.get(KEY_FILL));
+
+    if (!ONNXGTSUtils.isFill(fill)) {
+      throw new WarpScriptException(getName() + " invalid '" + KEY_FILL + "' policy '" + fill + "'.");
+    }
+
+    double fillValue = params.get(KEY_FILL_VALUE) instanceof Number ? ((Number) params.get(KEY_FILL_VALUE)).doubleValue() : 0.0D;
+
+    String output = null == params.get(KEY_OUTPUT) ? null : String.valueOf(params.get(KEY_OUTPUT));
+
+    if (null != output && !session.getOutputNames().contains(output)) {
+      throw new WarpScriptException(getName() + " unknown output '" + output + "'.");
+    }
+
+    Map<String,NodeInfo> inputInfo;
+
+    try {
+      inputInfo = session.getInputInfo();
+    } catch (OrtException oe) {
+      throw new WarpScriptException(getName() + " unable to retrieve the session inputs.", oe);
+    }
+
+    for (String name: stateMapping.values()) {
+      if (!(null != inputInfo.get(name) && inputInfo.get(name).getInfo() instanceof TensorInfo)) {
+        throw new WarpScriptException(getName() + " unknown state input '" + name + "'.");
+      }
+    }
+
+    String input;
+
+    if (null != params.get(KEY_INPUT)) {
+      input = String.valueOf(params.get(KEY_INPUT));
+    } else {
+      Set<String> candidates = new LinkedHashSet<String>(inputInfo.keySet());
+      candidates.removeAll(stateMapping.values());
+      if (1 != candidates.size()) {
+        throw new WarpScriptException(getName() + " cannot determine the sequence input, specify '" + KEY_INPUT + "'.");
+      }
+      input = candidates.iterator().next();
+    }
+
+    if (null == inputInfo.get(input) || !(inputInfo.get(input).getInfo() instanceof TensorInfo)) {
+      throw new WarpScriptException(getName() + " unknown tensor input '" + input + "'.");
+    }
+
+    TensorInfo sequenceInfo = (TensorInfo) inputInfo.get(input).getInfo();
+    int rank = sequenceInfo.getShape().length;
+
+    if (2 != rank && 3 != rank) {
+      throw new WarpScriptException(getName() + " input '" + input + "' must have rank 2 [T,C] or 3 [1,T,C].");
+    }
+
+    Set<String> outputNames = new LinkedHashSet<String>(stateMapping.keySet());
+    if (null != output) {
+      outputNames.add(output);
+    }
+
+    ONNXGTSUtils.Aligned aligned = ONNXGTSUtils.align(series, fill, fillValue);
+    int steps = aligned.ticks.length;
+    int channels = series.size();
+
+    OnnxJavaType type = OnnxJavaType.UNKNOWN == sequenceInfo.type ? OnnxJavaType.FLOAT : sequenceInfo.type;
+
+    List<GeoTimeSerie> results = null;
+
+    // Tensors created by this function, as opposed to the state outputs owned by results
+    List<OnnxTensor> owned = new ArrayList<OnnxTensor>();
+    Result previous = null;
+
+    try {
+      Map<String,OnnxTensor> state = initialState(stateMapping, inputInfo, initial, owned);
+
+      for (int first = 0; first < steps; first += chunk) {
+        int n = Math.min(chunk, steps - first);
+
+        ONNXTensorBuilder builder = new ONNXTensorBuilder(type, 2 == rank ? new long[] { n, channels } : new long[] { 1, n, channels });
+
+        int idx = 0;
+        for (int t = first; t < first + n; t++) {
+          for (int c = 0; c < channels; c++) {
+            builder.set(idx++, aligned.columns[c][t]);
+          }
+        }
+
+        Result result;
+
+        try (OnnxTensor sequence = builder.build(); ONNXWatchdog.Watch watch = ONNXWatchdog.watch(getName(), stack, timeout)) {
+          Map<String,OnnxTensor> inputs = new HashMap<String,OnnxTensor>(state);
+          inputs.put(input, sequence);
+          long start = System.nanoTime();
+          result = watch.run(session, inputs, outputNames, null);
+          if (null != metrics) {
+            metrics.record(ONNXMetrics.PHASE_RUN, start);
+          }
+
+          // The chunk, the new state and the state it was computed from count against the budget of the scope
+          try {
+            scope.checkBudget(getName(), ONNXScope.sizeOf(sequence) + ONNXScope.sizeOf(result) + (null == previous ? 0L : ONNXScope.sizeOf(previous)));
+          } catch (WarpScriptException wse) {
+            result.close();
+            throw wse;
+          }
+        }
+
+        // The state of the previous chunk has been consumed
+        if (null != previous) {
+          previous.close();
+        }
+        previous = result;
+
+        for (String name: stateMapping.keySet()) {
+          if (!(result.get(name).get() instanceof OnnxTensor)) {
+            throw new WarpScriptException(getName() + " state output '" + name + "' is not a tensor.");
+          }
+          state.put(stateMapping.get(name), (OnnxTensor) result.get(name).get());
+        }
+
+        if (null != output) {
+          Object vector = ONNXUtils.fromONNXValue(result.get(output).get(), output, ONNXUtils.FORMAT_VECTOR);
+          int size = vector instanceof double[] ? ((double[]) vector).length : ((long[]) vector).length;
+
+          if (0 != size % n) {
+            throw new WarpScriptException(getName() + " output '" + output + "' does not have one row per step.");
+          }
+
+          if (null == results) {
+            results = ONNXGTSUtils.outputSeries(series.get(0), size / n, steps);
+          }
+
+          for (int r = 0; r < n; r++) {
+            ONNXGTSUtils.addRow(results, aligned.ticks[first + r], vector, r);
+          }
+        }
+      }
+
+      Map<String,Object> outputs = new LinkedHashMap<String,Object>();
+
+      if (null != output) {
+        if (null == results) {
+          outputs.put(RESULT_GTS, series.get(0).cloneEmpty());
+        } else {
+          outputs.put(RESULT_GTS, 1 == results.size() ? results.get(0) : results);
+        }
+      }
+
+      outputs.put(RESULT_STATE, export(state));
+
+      stack.push(outputs);
+    } catch (OrtException oe) {
+      throw new WarpScriptException(getName() + " encountered an error while performing inference.", oe);
+    } finally {
+      if (null != previous) {
+        previous.close();
+      }
+      for (OnnxTensor tensor: owned) {
+        tensor.close();
+      }
+    }
+
+    return stack;
+  }
+
+  private Map<String,OnnxTensor> initialState(Map<String,String> stateMapping, Map<String,NodeInfo> inputInfo, Map<Object,Object> initial, List<OnnxTensor> owned) throws WarpScriptException, OrtException {
+    Map<String,OnnxTensor> state = new HashMap<String,OnnxTensor>();
+
+    for (String name: stateMapping.values()) {
+      Object value = initial.get(name);
+      TensorInfo info = (TensorInfo) inputInfo.get(name).getInfo();
+
+      if (value instanceof OnnxTensor) {
+        if (ONNXScope.isClosed(value)) {
+          throw new WarpScriptException(getName() + " initial state '" + name + "' was closed.");
+        }
+        state.put(name, (OnnxTensor) value);
+      } else if (value instanceof Map) {
+        Map<Object,Object> tensor = (Map<Object,Object>) value;
+
+        // Only states of numeric types can be given as BYTES
+        if (OnnxJavaType.STRING == info.type || 0 == info.type.size) {
+          throw new WarpScriptException(getName() + " initial state '" + name + "' of type " + info.type + " cannot be given as BYTES.");
+        }
+
+        if (!(tensor.get(ONNXTENSOR.KEY_DATA) instanceof byte[]) || !(tensor.get(ONNXTENSOR.KEY_SHAPE) instanceof List)) {
+          throw new WarpScriptException(getName() + " initial state '" + name + "' must have BYTES '" + ONNXTENSOR.KEY_DATA + "' and a '" + ONNXTENSOR.KEY_SHAPE + "'.");
+        }
+
+        List<Object> dims = (List<Object>) tensor.get(ONNXTENSOR.KEY_SHAPE);
+        long[] shape = new long[dims.size()];
+        for (int i = 0; i < shape.length; i++) {
+          shape[i] = ((Number) dims.get(i)).longValue();
+        }
+
+        ByteOrder order = ONNXTENSOR.toByteOrder(getName(), tensor.get(ONNXTENSOR.KEY_BYTEORDER));
+        byte[] data = (byte[]) tensor.get(ONNXTENSOR.KEY_DATA);
+
+        if (data.length != ONNXTensorBuilder.elements(shape) * info.type.size) {
+          throw new WarpScriptException(getName() + " initial state '" + name + "' does not match its shape.");
+        }
+
+        OnnxTensor t = ONNXUtils.createTensor(data, order, shape, info.type);
+        owned.add(t);
+        state.put(name, t);
+      } else if (null == value) {
+        // Zero filled, dynamic dimensions are set to 1
+        long[] shape = info.getShape().clone();
+        for (int i = 0; i < shape.length; i++) {
+          if (shape[i] < 0) {
+            shape[i] = 1;
+          }
+        }
+        OnnxTensor t = new ONNXTensorBuilder(info.type, shape).build();
+        owned.add(t);
+        state.put(name, t);
+      } else {
+        throw new WarpScriptException(getName() + " invalid initial state '" + name + "', expected a tensor or a MAP.");
+      }
+    }
+
+    return state;
+  }
+
+  /**
+   * Export state tensors as ONNX.TENSOR parameter MAPs
+   */
+  private static Map<String,Object> export(Map<String,OnnxTensor> state) {
+    Map<String,Object> exported = new LinkedHashMap<String,Object>();
+
+    for (Entry<String,OnnxTensor> entry: state.entrySet()) {
+      TensorInfo info = entry.getValue().getInfo();
+      ByteBuffer content = ONNXTensorOps.content(entry.getValue());
+      byte[] data = new byte[content.remaining()];
+      content.get(data);
+
+      List<Object> shape = new ArrayList<Object>();
+      for (long dim: info.getShape()) {
+        shape.add(dim);
+      }
+
+      Map<String,Object> tensor = new LinkedHashMap<String,Object>();
+      tensor.put(ONNXTENSOR.KEY_DATA, data);
+      tensor.put(ONNXTENSOR.KEY_TYPE, info.type.name());
+      tensor.put(ONNXTENSOR.KEY_SHAPE, shape);
+      tensor.put(ONNXTENSOR.KEY_BYTEORDER, ByteOrder.nativeOrder().toString());
+      exported.put(entry.getKey(), tensor);
+    }
+
+    return exported;
+  }
+}
@@ -0,0 +1,372 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxSparseTensor;
+import ai.onnxruntime.OnnxTensorLike;
+import ai.onnxruntime.OnnxValue;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.Result;
+import ai.onnxruntime.TensorInfo;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+/**
+ * Native resources (tensors and inference results) created during the execution of an ONNX macro.
+ *
+ * The scope is stored as a stack attribute by ONNX, every resource registered in it is closed when
+ * the macro ends, whether it succeeded or not. Scopes are nested when ONNX calls are nested.
+ */
+public class ONNXScope {
+
+  /**
+   * Stack attribute holding the current scope
+   */
+  public static final String ATTRIBUTE = "onnx.scope";
+
+  public static final String STATS_LIVE = "native.live";
+  public static final String STATS_LIVE_BYTES = "native.live.bytes";
+
+  private static final AtomicLong live = new AtomicLong(0L);
+  private static final AtomicLong liveBytes = new AtomicLong(0L);
+
+  private final ONNXScope parent;
+
+  /**
+   * Session the scope was opened for, with its metrics, its binding plan and the micro batcher
+   * ONNX.RUN calls go through
+   */
+  private OrtSession session = null;
+  private ONNXMetrics metrics = null;
+  private ONNXBindingPlan plan = null;
+  private ONNXMicroBatcher batcher = null;
+
+  /**
+   * Maximum number of bytes of the resources of this scope and of its nested scopes, 0 for no limit
+   */
+  private long budget = 0L;
+
+  /**
+   * Size of the resources registered in this scope
+   */
+  private long bytes = 0L;
+
+  /**
+   * Limiters this scope holds a slot of
+   */
+  private final List<ONNXLimiter> limiters = new ArrayList<ONNXLimiter>();
+
+  /**
+   * Registered resources and their size in bytes
+   */
+  private final Map<AutoCloseable,Long> resources = new IdentityHashMap<AutoCloseable,Long>();
+
+  private ONNXScope(ONNXScope parent) {
+    this.parent = parent;
+  }
+
+  /**
+   * Open a new scope nested in the current one and make it current
+   */
+  public static ONNXScope open(WarpScriptStack stack) {
+    ONNXScope scope = new ONNXScope(get(stack));
+    stack.setAttribute(ATTRIBUTE, scope);
+    return scope;
+  }
+
+  /**
+   * Return the current scope or null if not called from within an ONNX macro
+   */
+  public static ONNXScope get(WarpScriptStack stack) {
+    Object scope = stack.getAttribute(ATTRIBUTE);
+    return scope instanceof ONNXScope ? (ONNXScope) scope : null;
+  }
+
+  /**
+   * Bind the scope to the session it was opened for
+   *
+   * @param batcher Micro batcher of the session, null if micro batching is disabled
+   */
+  public void bind(OrtSession session, ONNXMetrics metrics, ONNXBindingPlan plan, ONNXMicroBatcher batcher) {
+    this.session = session;
+    this.metrics = metrics;
+    this.plan = plan;
+    this.batcher = batcher;
+  }
+
+  public ONNXScope getParent() {
+    return parent;
+  }
+
+  public void setBudget(long budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * Check that the resources of the scope and of its parents, plus the given number of bytes,
+   * fit in the budgets of the scopes
+   *
+   * @param function Name of the calling function, used in error messages
+   * @param extra Size of resources not registered in any scope
+   */
+  public void checkBudget(String function, long extra) throws WarpScriptException {
+    long total = extra;
+
+    for (ONNXScope scope = this; null != scope; scope = scope.parent) {
+      synchronized(scope) {
+        total += scope.bytes;
+      }
+      if (scope.budget > 0L && total > scope.budget) {
+        throw new WarpScriptException(function + " native memory budget of " + scope.budget + " bytes exceeded, " + total + " bytes needed.");
+      }
+    }
+  }
+
+  /**
+   * Record that the scope holds a slot of a limiter
+   */
+  public void hold(ONNXLimiter limiter) {
+    limiters.add(limiter);
+  }
+
+  /**
+   * Return true if this scope or one of its parents holds a slot of the limiter, nested calls
+   * on a model reuse the slot of the enclosing call
+   */
+  public boolean holds(ONNXLimiter limiter) {
+    for (ONNXScope scope = this; null != scope; scope = scope.parent) {
+      if (scope.limiters.contains(limiter)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Return the scope of the given session, this scope or one of its parents, null if none
+   */
+  private ONNXScope find(OrtSession session) {
+    ONNXScope scope = this;
+    while (null != scope && session != scope.session) {
+      scope = scope.parent;
+    }
+    return scope;
+  }
+
+  /**
+   * Return the current scope of the stack, checking that the given session is bound in it or in
+   * one of its parents. Sessions are shared and may be closed by the session cache once the ONNX
+   * call which obtained them is over, they cannot be used outside of it.
+   *
+   * @param function Name of the calling function, used in error messages
+   */
+  public static ONNXScope check(String function, WarpScriptStack stack, OrtSession session) throws WarpScriptException {
+    ONNXScope scope = get(stack);
+
+    if (null == scope || null == scope.find(session)) {
+      throw new WarpScriptException(function + " can only use the session of an enclosing ONNX call.");
+    }
+
+    return scope;
+  }
+
+  public ONNXMicroBatcher getBatcher(OrtSession session) {
+    ONNXScope scope = find(session);
+    return null == scope ? null : scope.batcher;
+  }
+
+  /**
+   * Return the binding plan of the given session, null if the session is unknown
+   */
+  public ONNXBindingPlan getBindingPlan(OrtSession session) {
+    ONNXScope scope = find(session);
+    return null == scope ? null : scope.plan;
+  }
+
+  /**
+   * Return the metrics of the given session, null if the session is unknown
+   */
+  public ONNXMetrics getMetrics(OrtSession session) {
+    ONNXScope scope = find(session);
+    return null == scope ? null : scope.metrics;
+  }
+
+  /**
+   * Return the metrics of the session the scope was opened for
+   */
+  public ONNXMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Return the metrics of the given session in the current scope of the stack, null if none
+   */
+  public static ONNXMetrics getMetrics(WarpScriptStack stack, OrtSession session) {
+    ONNXScope scope = get(stack);
+    return null == scope ? null : scope.getMetrics(session);
+  }
+
+  /**
+   * Register a value created by a function in the current scope of the stack, if any, and check
+   * that it fits in the budget. The value is closed with the scope if it does not.
+   */
+  public static void register(WarpScriptStack stack, String function, OnnxValue value) throws WarpScriptException {
+    ONNXScope scope = get(stack);
+    if (null != scope) {
+      scope.register(value);
+      scope.checkBudget(function, 0L);
+    }
+  }
+
+  public synchronized void register(OnnxValue value) {
+    register(value, sizeOf(value));
+  }
+
+  public synchronized void register(Result result) {
+    register(result, sizeOf(result));
+  }
+
+  private void register(AutoCloseable resource, long size) {
+    if (null == resources.put(resource, size)) {
+      bytes += size;
+      live.incrementAndGet();
+      liveBytes.addAndGet(size);
+    }
+  }
+
+  /**
+   * Close a value, whether it was registered in this scope, in one of its parents or not at all.
+   */
+  public static void close(ONNXScope scope, OnnxValue value) {
+    while (null != scope) {
+      if (scope.unregister(value)) {
+        break;
+      }
+      scope = scope.parent;
+    }
+    release(value);
+  }
+
+  private synchronized boolean unregister(AutoCloseable resource) {
+    Long size = resources.remove(resource);
+
+    if (null == size) {
+      return false;
+    }
+
+    bytes -= size;
+    live.decrementAndGet();
+    liveBytes.addAndGet(-size);
+    return true;
+  }
+
+  /**
+   * Close all the resources of the scope and restore the parent scope as the current one
+   */
+  public void close(WarpScriptStack stack) {
+    List<AutoCloseable> toclose;
+
+    synchronized(this) {
+      toclose = new ArrayList<AutoCloseable>(resources.keySet());
+    }
+
+    for (AutoCloseable resource: toclose) {
+      unregister(resource);
+      release(resource);
+    }
+
+    for (ONNXLimiter limiter: limiters) {
+      limiter.release();
+    }
+    limiters.clear();
+
+    stack.setAttribute(ATTRIBUTE, parent);
+  }
+
+  /**
+   * Return true if the value is a tensor which was closed, using a closed tensor crashes the JVM.
+   * Values owned by a Result are closed with it.
+   */
+  public static boolean isClosed(Object value) {
+    return value instanceof OnnxTensorLike && ((OnnxTensorLike) value).isClosed();
+  }
+
+  /**
+   * Close a resource, ONNX Runtime ignores closing a value or a Result twice
+   */
+  private static void release(AutoCloseable resource) {
+    try {
+      resource.close();
+    } catch (Exception e) {
+      // Nothing we can do
+    }
+  }
+
+  /**
+   * Size in bytes of the content of a tensor, 0 for other values
+   */
+  public static long sizeOf(OnnxValue value) {
+    if (value instanceof OnnxSparseTensor) {
+      return ONNXSparse.sizeOf((OnnxSparseTensor) value);
+    }
+
+    if (!(value instanceof OnnxTensorLike)) {
+      return 0L;
+    }
+
+    TensorInfo info = ((OnnxTensorLike) value).getInfo();
+
+    if (OnnxJavaType.STRING == info.type || OnnxJavaType.UNKNOWN == info.type) {
+      return 0L;
+    }
+
+    long size = info.type.size;
+    for (long dim: info.getShape()) {
+      size *= dim;
+    }
+
+    return size;
+  }
+
+  /**
+   * Size in bytes of the values owned by a result, pinned outputs are not owned
+   */
+  public static long sizeOf(Result result) {
+    long size = 0L;
+    for (int i = 0; i < result.size(); i++) {
+      if (result.isResultOwner(i)) {
+        size += sizeOf(result.get(i));
+      }
+    }
+    return size;
+  }
+
+  public static long getLive() {
+    return live.get();
+  }
+
+  public static long getLiveBytes() {
+    return liveBytes.get();
+  }
+}
@@ -0,0 +1,542 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import io.warp10.script.WarpScriptException;
+
+/**
+ * Process wide cache of ONNX sessions.
+ *
+ * Sessions are keyed by model identity (path or content hash) and reference counted so
+ * a session acquired by a running macro is never closed underneath it. Idle sessions are
+ * evicted in LRU order when the cumulated model size exceeds the configured budget, or when
+ * they have not been used for longer than the configured TTL.
+ *
+ * The native footprint of a session is not exposed by ONNX Runtime, the size of the serialized
+ * model is used as an estimate.
+ *
+ * Sessions can be reloaded, the new session replaces the old one atomically for subsequent
+ * acquisitions while the old one is closed once the macros using it have released it.
+ */
+public class ONNXSessionCache {
+
+  public static final String STATS_HITS = "cache.hits";
+  public static final String STATS_MISSES = "cache.misses";
+  public static final String STATS_EVICTIONS = "cache.evictions";
+  public static final String STATS_RELOADS = "cache.reloads";
+  public static final String STATS_ENTRIES = "cache.entries";
+  public static final String STATS_SIZE = "cache.size";
+  public static final String STATS_MAXSIZE = "cache.maxsize";
+
+  /**
+   * Creates the session for a key which is not in the cache
+   */
+  public interface Loader {
+    public OrtSession load() throws OrtException, IOException;
+
+    /**
+     * Estimated size of the loaded model, called after load
+     */
+    public long getSize();
+  }
+
+  public static class CachedSession {
+    private final String key;
+    private final OrtSession session;
+    private final long size;
+    private final Loader loader;
+    private final AtomicInteger refs = new AtomicInteger(0);
+    private volatile long lastAccess;
+    private volatile boolean retired = false;
+    private volatile boolean pinned = false;
+    private boolean closed = false;
+
+    /**
+     * Micro batchers of the session, per configuration
+     */
+    private final ConcurrentHashMap<String,ONNXMicroBatcher> batchers = new ConcurrentHashMap<String,ONNXMicroBatcher>();
+
+    /**
+     * Binding plan of the session, compiled on first use
+     */
+    private volatile ONNXBindingPlan plan = null;
+
+    private CachedSession(String key, OrtSession session, long size, Loader loader) {
+      this.key = key;
+      this.session = session;
+      this.size = size;
+      this.loader = loader;
+      this.lastAccess = System.currentTimeMillis();
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public OrtSession getSession() {
+      return session;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * Return the micro batcher of the session for the given configuration, creating it if needed
+     */
+    public ONNXMicroBatcher getBatcher(int maxSize, long maxWait) throws WarpScriptException {
+      String config = maxSize + ":" + maxWait;
+      ONNXMicroBatcher batcher = batchers.get(config);
+
+      if (null == batcher) {
+        batcher = new ONNXMicroBatcher(session, maxSize, maxWait);
+        ONNXMicroBatcher previous = batchers.putIfAbsent(config, batcher);
+        if (null != previous) {
+          batcher = previous;
+        }
+      }
+
+      return batcher;
+    }
+
+    /**
+     * Return the binding plan of the session, compiling it if needed
+     */
+    public ONNXBindingPlan getBindingPlan(String function) throws WarpScriptException {
+      ONNXBindingPlan plan = this.plan;
+
+      // Concurrent first calls may compile identical plans, any of them can be kept
+      if (null == plan) {
+        plan = ONNXBindingPlan.compile(function, session);
+        this.plan = plan;
+      }
+
+      return plan;
+    }
+
+    /**
+     * Close the underlying session if it was retired and is no longer referenced
+     *
+     * @return true if the session was closed by this call
+     */
+    private synchronized boolean closeIfUnused() throws OrtException {
+      if (closed || !retired || refs.get() > 0) {
+        return false;
+      }
+      closed = true;
+      session.close();
+      return true;
+    }
+  }
+
+  /**
+   * Access ordered map, the eldest entry is the least recently used one
+   */
+  private final LinkedHashMap<String,CachedSession> sessions = new LinkedHashMap<String,CachedSession>(16, 0.75F, true);
+
+  /**
+   * Per key locks so a model is only loaded once when requested concurrently. A lock is removed
+   * once no thread uses it, so keys of models given as BYTES do not accumulate.
+   */
+  private final Map<String,KeyLock> locks = new HashMap<String,KeyLock>();
+
+  private static class KeyLock {
+    /**
+     * Number of threads holding or waiting for the lock, guarded by locks
+     */
+    private int users = 0;
+  }
+
+  /**
+   * Number of open sessions of each model given as BYTES, whether cached, retired or dedicated,
+   * the metrics of a model are dropped with its last session
+   */
+  private final Map<String,Integer> models = new HashMap<String,Integer>();
+
+  private final long maxSize;
+  private final long ttl;
+
+  private long size = 0L;
+
+  private final AtomicLong hits = new AtomicLong(0L);
+  private final AtomicLong misses = new AtomicLong(0L);
+  private final AtomicLong evictions = new AtomicLong(0L);
+  private final AtomicLong reloads = new AtomicLong(0L);
+
+  /**
+   * @param maxSize Maximum cumulated size of the cached models, 0 disables caching
+   * @param ttl Maximum idle time of a cached session in ms, 0 disables idle eviction
+   */
+  public ONNXSessionCache(long maxSize, long ttl) {
+    this.maxSize = maxSize;
+    this.ttl = ttl;
+
+    if (ttl > 0) {
+      ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r);
+          t.setName("[ONNX Session Cache Reaper]");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+      long period = Math.max(1000L, Math.min(ttl / 2, 60000L));
+
+      reaper.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          evict();
+        }
+      }, period, period, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Retrieve the session associated with key, loading it if needed. The returned session
+   * MUST be released by calling release.
+   *
+   * @param key Key identifying the model
+   * @param loader Loader to call if the session is not in the cache
+   */
+  public CachedSession acquire(String key, Loader loader) throws OrtException, IOException {
+    CachedSession cs = lookup(key);
+
+    if (null != cs) {
+      hits.incrementAndGet();
+      return cs;
+    }
+
+    KeyLock lock = lock(key);
+
+    try {
+      synchronized(lock) {
+        // The model may have been loaded while we were waiting for the lock
+        cs = lookup(key);
+
+        if (null != cs) {
+          hits.incrementAndGet();
+          return cs;
+        }
+
+        misses.incrementAndGet();
+
+        OrtSession session = load(key, loader);
+        long size = loader.getSize();
+
+        cs = new CachedSession(key, session, size, loader);
+        cs.refs.incrementAndGet();
+
+        if (size > maxSize) {
+          // The model will never fit, it is closed as soon as released
+          cs.retired = true;
+          return cs;
+        }
+
+        synchronized(sessions) {
+          sessions.put(key, cs);
+          this.size += size;
+        }
+      }
+    } finally {
+      unlock(key, lock);
+    }
+
+    evict();
+
+    return cs;
+  }
+
+  /**
+   * Create a session which is not cached, it MUST be released by calling release and is closed then
+   */
+  public CachedSession create(String key, Loader loader) throws OrtException, IOException {
+    CachedSession cs = new CachedSession(key, load(key, loader), loader.getSize(), loader);
+    cs.refs.incrementAndGet();
+    cs.retired = true;
+    return cs;
+  }
+
+  /**
+   * Release a session obtained via acquire or create
+   */
+  public void release(CachedSession cs) throws OrtException {
+    cs.lastAccess = System.currentTimeMillis();
+
+    if (0 == cs.refs.decrementAndGet()) {
+      close(cs);
+      evict();
+    }
+  }
+
+  /**
+   * Keep a cached session in the cache even when idle or over budget
+   */
+  public void pin(CachedSession cs) {
+    cs.pinned = true;
+  }
+
+  /**
+   * Reload the cached sessions whose key starts with the given prefix and swap them in. Sessions
+   * are reloaded with the loader which created them, the replaced sessions are closed once released.
+   *
+   * @param prefix Prefix of the keys of the sessions to reload
+   * @param warmup Number of warm-up inferences run on the new sessions before they are swapped in
+   * @return the number of reloaded sessions
+   */
+  public int reload(String prefix, int warmup) throws OrtException, IOException {
+    List<CachedSession> candidates = new ArrayList<CachedSession>();
+
+    synchronized(sessions) {
+      for (CachedSession cs: sessions.values()) {
+        if (cs.key.startsWith(prefix)) {
+          candidates.add(cs);
+        }
+      }
+    }
+
+    int reloaded = 0;
+
+    for (CachedSession old: candidates) {
+      // Prevent concurrent loads of the same key
+      KeyLock lock = lock(old.key);
+
+      try {
+        synchronized(lock) {
+          OrtSession session = load(old.key, old.loader);
+
+          for (int i = 0; i < warmup; i++) {
+            if (!ONNXPreloader.warmup(session)) {
+              break;
+            }
+          }
+
+          CachedSession cs = new CachedSession(old.key, session, old.loader.getSize(), old.loader);
+          cs.pinned = old.pinned;
+
+          synchronized(sessions) {
+            // The session may have been evicted or reloaded meanwhile
+            if (old != sessions.get(old.key)) {
+              cs.retired = true;
+            } else {
+              sessions.put(old.key, cs);
+              this.size += cs.size - old.size;
+              old.retired = true;
+            }
+          }
+
+          if (cs.retired) {
+            close(cs);
+            continue;
+          }
+
+          close(old);
+          reloads.incrementAndGet();
+          reloaded++;
+        }
+      } finally {
+        unlock(old.key, lock);
+      }
+    }
+
+    evict();
+
+    return reloaded;
+  }
+
+  /**
+   * Load the session of a key, counting it among the open sessions of its model
+   */
+  private OrtSession load(String key, Loader loader) throws OrtException, IOException {
+    opened(key);
+
+    boolean loaded = false;
+
+    try {
+      OrtSession session = loader.load();
+      loaded = true;
+      return session;
+    } finally {
+      if (!loaded) {
+        closed(key);
+      }
+    }
+  }
+
+  /**
+   * Close a retired session once unused
+   */
+  private void close(CachedSession cs) throws OrtException {
+    if (cs.closeIfUnused()) {
+      closed(cs.key);
+    }
+  }
+
+  /**
+   * Count a session being opened for a model given as BYTES, before it is loaded so the metrics
+   * the loader records are not dropped by the closing of another session of the model
+   */
+  private void opened(String key) {
+    String model = ONNX.getBytesModel(key);
+
+    if (null == model) {
+      return;
+    }
+
+    synchronized(models) {
+      Integer count = models.get(model);
+      models.put(model, null == count ? 1 : count + 1);
+    }
+  }
+
+  /**
+   * Count a session of a model given as BYTES being closed. When it was the last open session of
+   * the model, the metrics of the model are dropped, so scripts submitting many models do not make
+   * them grow without bound.
+   */
+  private void closed(String key) {
+    String model = ONNX.getBytesModel(key);
+
+    if (null == model) {
+      return;
+    }
+
+    synchronized(models) {
+      Integer count = models.get(model);
+
+      if (null == count || count > 1) {
+        if (null != count) {
+          models.put(model, count - 1);
+        }
+        return;
+      }
+
+      models.remove(model);
+      ONNXMetrics.remove(model);
+    }
+  }
+
+  /**
+   * Return the lock of a key, it MUST be released by calling unlock
+   */
+  private KeyLock lock(String key) {
+    synchronized(locks) {
+      KeyLock lock = locks.get(key);
+      if (null == lock) {
+        lock = new KeyLock();
+        locks.put(key, lock);
+      }
+      lock.users++;
+      return lock;
+    }
+  }
+
+  private void unlock(String key, KeyLock lock) {
+    synchronized(locks) {
+      if (0 == --lock.users) {
+        locks.remove(key);
+      }
+    }
+  }
+
+  private CachedSession lookup(String key) {
+    synchronized(sessions) {
+      CachedSession cs = sessions.get(key);
+
+      if (null != cs) {
+        cs.refs.incrementAndGet();
+        cs.lastAccess = System.currentTimeMillis();
+      }
+
+      return cs;
+    }
+  }
+
+  /**
+   * Evict sessions which have been idle for too long and unused sessions in LRU order
+   * until the size of the cache fits in the budget.
+   */
+  private void evict() {
+    List<CachedSession> evicted = new ArrayList<CachedSession>();
+
+    synchronized(sessions) {
+      long now = System.currentTimeMillis();
+
+      Iterator<CachedSession> iter = sessions.values().iterator();
+
+      while(iter.hasNext()) {
+        CachedSession cs = iter.next();
+
+        if (cs.refs.get() > 0 || cs.pinned) {
+          continue;
+        }
+
+        if (this.size > maxSize || (ttl > 0 && now - cs.lastAccess > ttl)) {
+          iter.remove();
+          this.size -= cs.size;
+          cs.retired = true;
+          evicted.add(cs);
+        }
+      }
+    }
+
+    for (CachedSession cs: evicted) {
+      evictions.incrementAndGet();
+      try {
+        close(cs);
+      } catch (OrtException oe) {
+        // Ignore, the session is gone anyway
+      }
+    }
+  }
+
+  public Map<String,Object> getStats() {
+    Map<String,Object> stats = new LinkedHashMap<String,Object>();
+
+    stats.put(STATS_HITS, hits.get());
+    stats.put(STATS_MISSES, misses.get());
+    stats.put(STATS_EVICTIONS, evictions.get());
+    stats.put(STATS_RELOADS, reloads.get());
+
+    synchronized(sessions) {
+      stats.put(STATS_ENTRIES, (long) sessions.size());
+      stats.put(STATS_SIZE, this.size);
+    }
+
+    stats.put(STATS_MAXSIZE, maxSize);
+
+    return stats;
+  }
+}
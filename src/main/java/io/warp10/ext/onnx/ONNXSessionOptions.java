@@ -0,0 +1,216 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.util.Map;
+
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession.SessionOptions;
+import ai.onnxruntime.OrtSession.SessionOptions.ExecutionMode;
+import ai.onnxruntime.OrtSession.SessionOptions.OptLevel;
+import io.warp10.script.WarpScriptException;
+
+/**
+ * Options used to create an ONNX session. Options can be specified in the parameter MAP
+ * of ONNX, unspecified options default to the values of the matching 'onnx.' configuration
+ * keys, unspecified configuration keys leave the ONNX Runtime defaults untouched.
+ */
+public class ONNXSessionOptions {
+
+  public static final String INTRA_THREADS = "intra.threads";
+  public static final String INTER_THREADS = "inter.threads";
+  public static final String EXECUTION_MODE = "execution.mode";
+  public static final String OPTIMIZATION = "optimization";
+  public static final String MEMORY_PATTERN = "memory.pattern";
+  public static final String CPU_ARENA = "cpu.arena";
+  public static final String GLOBAL_THREADS = "global.threads";
+
+  public static final String[] KEYS = {
+    INTRA_THREADS,
+    INTER_THREADS,
+    EXECUTION_MODE,
+    OPTIMIZATION,
+    MEMORY_PATTERN,
+    CPU_ARENA,
+    GLOBAL_THREADS,
+  };
+
+  private Integer intraThreads = null;
+  private Integer interThreads = null;
+  private ExecutionMode executionMode = null;
+  private OptLevel optLevel = null;
+  private Boolean memoryPattern = null;
+  private Boolean cpuArena = null;
+  private boolean globalThreads = false;
+
+  /**
+   * Prefix of the profiling file, null if profiling is disabled
+   */
+  private String profilingPrefix = null;
+
+  /**
+   * @param defaults Options to start from, may be null
+   * @param params Parameters overriding the defaults, keys not listed in KEYS are ignored
+   */
+  public ONNXSessionOptions(ONNXSessionOptions defaults, Map<Object,Object> params) throws WarpScriptException {
+    if (null != defaults) {
+      this.intraThreads = defaults.intraThreads;
+      this.interThreads = defaults.interThreads;
+      this.executionMode = defaults.executionMode;
+      this.optLevel = defaults.optLevel;
+      this.memoryPattern = defaults.memoryPattern;
+      this.cpuArena = defaults.cpuArena;
+      this.globalThreads = defaults.globalThreads;
+    }
+
+    if (null == params) {
+      return;
+    }
+
+    if (null != params.get(INTRA_THREADS)) {
+      this.intraThreads = toInt(INTRA_THREADS, params.get(INTRA_THREADS));
+    }
+    if (null != params.get(INTER_THREADS)) {
+      this.interThreads = toInt(INTER_THREADS, params.get(INTER_THREADS));
+    }
+    if (null != params.get(EXECUTION_MODE)) {
+      try {
+        this.executionMode = ExecutionMode.valueOf(params.get(EXECUTION_MODE).toString().toUpperCase());
+      } catch (IllegalArgumentException iae) {
+        throw new WarpScriptException("Invalid '" + EXECUTION_MODE + "', expected SEQUENTIAL or PARALLEL.");
+      }
+    }
+    if (null != params.get(OPTIMIZATION)) {
+      try {
+        this.optLevel = OptLevel.valueOf(params.get(OPTIMIZATION).toString().toUpperCase());
+      } catch (IllegalArgumentException iae) {
+        throw new WarpScriptException("Invalid '" + OPTIMIZATION + "', expected NO_OPT, BASIC_OPT, EXTENDED_OPT or ALL_OPT.");
+      }
+    }
+    if (null != params.get(MEMORY_PATTERN)) {
+      this.memoryPattern = toBoolean(params.get(MEMORY_PATTERN));
+    }
+    if (null != params.get(CPU_ARENA)) {
+      this.cpuArena = toBoolean(params.get(CPU_ARENA));
+    }
+    if (null != params.get(GLOBAL_THREADS)) {
+      this.globalThreads = toBoolean(params.get(GLOBAL_THREADS));
+    }
+  }
+
+  /**
+   * Create the ORT SessionOptions, the caller is responsible for closing them
+   */
+  public SessionOptions build() throws OrtException {
+    SessionOptions options = new SessionOptions();
+
+    try {
+      if (null != intraThreads) {
+        options.setIntraOpNumThreads(intraThreads);
+      }
+      if (null != interThreads) {
+        options.setInterOpNumThreads(interThreads);
+      }
+      if (null != executionMode) {
+        options.setExecutionMode(executionMode);
+      }
+      if (null != optLevel) {
+        options.setOptimizationLevel(optLevel);
+      }
+      if (null != memoryPattern) {
+        options.setMemoryPatternOptimization(memoryPattern);
+      }
+      if (null != cpuArena) {
+        options.setCPUArenaAllocator(cpuArena);
+      }
+      if (null != profilingPrefix) {
+        options.enableProfiling(profilingPrefix);
+      }
+      if (globalThreads) {
+        // The intra and inter op thread counts are then ignored, the global pools are used
+        options.disablePerSessionThreads();
+      }
+    } catch (OrtException oe) {
+      options.close();
+      throw oe;
+    }
+
+    return options;
+  }
+
+  /**
+   * Return a STRING identifying the options, sessions created with different
+   * options are cached separately.
+   */
+  public String fingerprint() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(INTRA_THREADS).append("=").append(intraThreads);
+    sb.append(",").append(INTER_THREADS).append("=").append(interThreads);
+    sb.append(",").append(EXECUTION_MODE).append("=").append(executionMode);
+    sb.append(",").append(OPTIMIZATION).append("=").append(optLevel);
+    sb.append(",").append(MEMORY_PATTERN).append("=").append(memoryPattern);
+    sb.append(",").append(CPU_ARENA).append("=").append(cpuArena);
+    sb.append(",").append(GLOBAL_THREADS).append("=").append(globalThreads);
+    if (null != profilingPrefix) {
+      sb.append(",profiling=").append(profilingPrefix);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Return the graph optimization level, null if left to the ONNX Runtime default
+   */
+  public OptLevel getOptLevel() {
+    return optLevel;
+  }
+
+  /**
+   * Enable profiling of the sessions created with these options, ONNX Runtime writes the profile
+   * to a file whose name starts with prefix. Profiled sessions are never cached.
+   */
+  public void enableProfiling(String prefix) {
+    this.profilingPrefix = prefix;
+  }
+
+  public boolean isProfiling() {
+    return null != profilingPrefix;
+  }
+
+  public boolean useGlobalThreads() {
+    return globalThreads;
+  }
+
+  private static int toInt(String key, Object value) throws WarpScriptException {
+    try {
+      if (value instanceof Number) {
+        return ((Number) value).intValue();
+      } else {
+        return Integer.parseInt(value.toString().trim());
+      }
+    } catch (NumberFormatException nfe) {
+      throw new WarpScriptException("Invalid '" + key + "', expected a LONG.");
+    }
+  }
+
+  private static boolean toBoolean(Object value) {
+    if (value instanceof Boolean) {
+      return (Boolean) value;
+    } else {
+      return "true".equals(value.toString().trim());
+    }
+  }
+}
@@ -0,0 +1,363 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxSparseTensor;
+import ai.onnxruntime.OnnxSparseTensor.COOTensor;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtException;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+import io.warp10.script.WarpScriptException;
+
+/**
+ * Sparse tensors in COO format.
+ *
+ * In WarpScript a COO tensor is a MAP with the non zero values under 'values', their indices under
+ * 'indices', the dense shape under 'shape' and the element type under 'type'. Indices are either a
+ * LIST of LONGs, the linear indices of the values in the dense tensor, or a LIST of LISTs of LONGs,
+ * the coordinates of the values. This is what ONNX.TENSOR expects to build a sparse tensor and what
+ * sparse outputs are converted to.
+ */
+public class ONNXSparse {
+
+  public static final String KEY_INDICES = "indices";
+  public static final String KEY_VALUES = "values";
+
+  /**
+   * Create a COO tensor
+   *
+   * @param indices LIST of LONGs or LIST of LISTs of LONGs
+   * @param values LIST of numbers, double[] or long[]
+   * @param type Type of the values
+   * @param shape Dense shape
+   */
+  public static OnnxSparseTensor create(Object indices, Object values, OnnxJavaType type, long[] shape) throws WarpScriptException, OrtException {
+    if (!(indices instanceof List)) {
+      throw new WarpScriptException("Sparse tensor indices must be a LIST.");
+    }
+
+    List<Object> idx = (List<Object>) indices;
+    int nnz = idx.size();
+
+    boolean coordinates = nnz > 0 && idx.get(0) instanceof List;
+    int rank = coordinates ? shape.length : 1;
+
+    LongBuffer indicesBuffer = ONNXUtils.allocate(nnz * rank * 8).asLongBuffer();
+
+    long size = ONNXTensorBuilder.elements(shape);
+
+    for (int i = 0; i < nnz; i++) {
+      if (coordinates) {
+        if (!(idx.get(i) instanceof List) || rank != ((List) idx.get(i)).size()) {
+          throw new WarpScriptException("Sparse tensor index #" + i + " is not a LIST of " + rank + " coordinates.");
+        }
+        List<Object> coords = (List<Object>) idx.get(i);
+        for (int d = 0; d < rank; d++) {
+          long coord = toIndex(coords.get(d), shape[d]);
+          indicesBuffer.put(i * rank + d, coord);
+        }
+      } else {
+        indicesBuffer.put(i, toIndex(idx.get(i), size));
+      }
+    }
+
+    ONNXTensorBuilder builder = new ONNXTensorBuilder(type, new long[] { nnz });
+
+    if (values instanceof double[]) {
+      double[] vector = (double[]) values;
+      checkCount(nnz, vector.length);
+      for (int i = 0; i < nnz; i++) {
+        builder.set(i, vector[i]);
+      }
+    } else if (values instanceof long[]) {
+      long[] vector = (long[]) values;
+      checkCount(nnz, vector.length);
+      for (int i = 0; i < nnz; i++) {
+        builder.set(i, vector[i]);
+      }
+    } else if (values instanceof List) {
+      List<Object> list = (List<Object>) values;
+      checkCount(nnz, list.size());
+      for (int i = 0; i < nnz; i++) {
+        Object value = list.get(i);
+        if (value instanceof Double || value instanceof Float) {
+          builder.set(i, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+          builder.set(i, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+          builder.set(i, Boolean.TRUE.equals(value) ? 1L : 0L);
+        } else {
+          throw new WarpScriptException("Sparse tensor value #" + i + " is not numeric.");
+        }
+      }
+    } else {
+      throw new WarpScriptException("Sparse tensor values must be a LIST or a vector.");
+    }
+
+    long[] indicesShape = coordinates ? new long[] { nnz, rank } : new long[] { nnz };
+
+    COOTensor coo = new COOTensor(indicesBuffer, indicesShape, view(builder.getBuffer(), type), shape, type, nnz);
+
+    return OnnxSparseTensor.createSparseTensor(ONNXWarpScriptExtension.getEnvironment(), coo);
+  }
+
+  /**
+   * Create a 1-D COO tensor from the values of a GTS. The values of a bucketized GTS are at the
+   * index of their bucket and the dense shape defaults to the bucket count, otherwise ticks are
+   * used as indices and the shape must be given.
+   */
+  public static OnnxSparseTensor fromGTS(GeoTimeSerie gts, OnnxJavaType type, long[] shape) throws WarpScriptException, OrtException {
+    if (gts.size() > 0 && TYPE.DOUBLE != gts.getType() && TYPE.LONG != gts.getType()) {
+      throw new WarpScriptException("Only numeric Geo Time Series can be converted to tensors.");
+    }
+
+    long[] ticks = GTSHelper.getTicks(gts);
+    double[] values = GTSHelper.getValuesAsDouble(gts);
+    ONNXGTSUtils.sort(ticks, values);
+
+    List<Object> indices = new ArrayList<Object>(ticks.length);
+
+    if (GTSHelper.isBucketized(gts)) {
+      long lastbucket = GTSHelper.getLastBucket(gts);
+      long bucketspan = GTSHelper.getBucketSpan(gts);
+      int bucketcount = GTSHelper.getBucketCount(gts);
+
+      if (null == shape) {
+        shape = new long[] { bucketcount };
+      }
+
+      for (long tick: ticks) {
+        indices.add(bucketcount - 1 - (lastbucket - tick) / bucketspan);
+      }
+    } else {
+      if (null == shape) {
+        throw new WarpScriptException("The shape of a sparse tensor built from a non bucketized Geo Time Series must be given.");
+      }
+      for (long tick: ticks) {
+        indices.add(tick);
+      }
+    }
+
+    return create(indices, values, type, shape);
+  }
+
+  /**
+   * Convert a sparse tensor to its MAP representation
+   */
+  public static Map<String,Object> toMap(OnnxSparseTensor tensor) throws WarpScriptException {
+    OnnxJavaType type = tensor.getInfo().type;
+    long[] shape = tensor.getInfo().getShape();
+
+    if (OnnxSparseTensor.SparseTensorType.COO != tensor.getSparseTensorType()) {
+      throw new WarpScriptException("Unsupported sparse tensor format " + tensor.getSparseTensorType() + ", only COO tensors are supported.");
+    }
+
+    List<Object> values = toList(tensor.getValuesBuffer(), type);
+
+    Buffer buffer = tensor.getIndicesBuffer();
+    long[] indicesShape = tensor.getIndicesShape();
+
+    List<Object> indices = new ArrayList<Object>(values.size());
+
+    if (buffer instanceof LongBuffer) {
+      LongBuffer lb = (LongBuffer) buffer;
+      if (2 == indicesShape.length) {
+        int rank = (int) indicesShape[1];
+        for (int i = 0; i < indicesShape[0]; i++) {
+          List<Object> coords = new ArrayList<Object>(rank);
+          for (int d = 0; d < rank; d++) {
+            coords.add(lb.get(i * rank + d));
+          }
+          indices.add(coords);
+        }
+      } else {
+        for (int i = 0; i < lb.remaining(); i++) {
+          indices.add(lb.get(i));
+        }
+      }
+    }
+
+    return toMap(indices, values, type, shape);
+  }
+
+  /**
+   * Convert the non zero elements of a dense numeric tensor to the MAP representation of a COO tensor, with linear indices
+   */
+  public static Map<String,Object> toMap(OnnxTensor tensor) throws WarpScriptException {
+    OnnxJavaType type = tensor.getInfo().type;
+
+    if (OnnxJavaType.STRING == type) {
+      throw new WarpScriptException("STRING tensors cannot be converted to sparse tensors.");
+    }
+
+    Object vector = ONNXUtils.fromONNXValue(tensor, null, ONNXUtils.FORMAT_VECTOR);
+
+    List<Object> indices = new ArrayList<Object>();
+    List<Object> values = new ArrayList<Object>();
+
+    if (vector instanceof double[]) {
+      double[] v = (double[]) vector;
+      for (int i = 0; i < v.length; i++) {
+        if (0.0D != v[i]) {
+          indices.add((long) i);
+          values.add(v[i]);
+        }
+      }
+    } else {
+      long[] v = (long[]) vector;
+      for (int i = 0; i < v.length; i++) {
+        if (0L != v[i]) {
+          indices.add((long) i);
+          values.add(v[i]);
+        }
+      }
+    }
+
+    return toMap(indices, values, type, tensor.getInfo().getShape());
+  }
+
+  private static Map<String,Object> toMap(List<Object> indices, List<Object> values, OnnxJavaType type, long[] shape) {
+    List<Object> dims = new ArrayList<Object>(shape.length);
+    for (long dim: shape) {
+      dims.add(dim);
+    }
+
+    Map<String,Object> map = new LinkedHashMap<String,Object>();
+    map.put(KEY_INDICES, indices);
+    map.put(KEY_VALUES, values);
+    map.put(ONNXTENSOR.KEY_SHAPE, dims);
+    map.put(ONNXTENSOR.KEY_TYPE, type.name());
+
+    return map;
+  }
+
+  /**
+   * Size in bytes of the indices and values of a sparse tensor
+   */
+  public static long sizeOf(OnnxSparseTensor tensor) {
+    long size = tensor.getInfo().type.size;
+    for (long dim: tensor.getValuesShape()) {
+      size *= dim;
+    }
+
+    long indices = 8L;
+    for (long dim: tensor.getIndicesShape()) {
+      indices *= dim;
+    }
+
+    return size + indices;
+  }
+
+  /**
+   * Typed view of a native ordered buffer, as expected by COOTensor
+   */
+  private static Buffer view(ByteBuffer buffer, OnnxJavaType type) {
+    switch (type) {
+      case FLOAT:
+        return buffer.asFloatBuffer();
+      case DOUBLE:
+        return buffer.asDoubleBuffer();
+      case INT16:
+      case FLOAT16:
+      case BFLOAT16:
+        return buffer.asShortBuffer();
+      case INT32:
+        return buffer.asIntBuffer();
+      case INT64:
+        return buffer.asLongBuffer();
+      default:
+        return buffer;
+    }
+  }
+
+  /**
+   * Values of a sparse tensor, half precision values are returned as floats by ONNX Runtime
+   */
+  private static List<Object> toList(Buffer buffer, OnnxJavaType type) {
+    List<Object> list = new ArrayList<Object>(buffer.remaining());
+
+    if (buffer instanceof FloatBuffer) {
+      FloatBuffer fb = (FloatBuffer) buffer;
+      for (int i = 0; i < fb.remaining(); i++) {
+        list.add((double) fb.get(i));
+      }
+    } else if (buffer instanceof DoubleBuffer) {
+      DoubleBuffer db = (DoubleBuffer) buffer;
+      for (int i = 0; i < db.remaining(); i++) {
+        list.add(db.get(i));
+      }
+    } else if (buffer instanceof ShortBuffer) {
+      ShortBuffer sb = (ShortBuffer) buffer;
+      for (int i = 0; i < sb.remaining(); i++) {
+        list.add((long) sb.get(i));
+      }
+    } else if (buffer instanceof IntBuffer) {
+      IntBuffer ib = (IntBuffer) buffer;
+      for (int i = 0; i < ib.remaining(); i++) {
+        list.add((long) ib.get(i));
+      }
+    } else if (buffer instanceof LongBuffer) {
+      LongBuffer lb = (LongBuffer) buffer;
+      for (int i = 0; i < lb.remaining(); i++) {
+        list.add(lb.get(i));
+      }
+    } else if (buffer instanceof ByteBuffer) {
+      ByteBuffer bb = (ByteBuffer) buffer;
+      for (int i = 0; i < bb.remaining(); i++) {
+        if (OnnxJavaType.BOOL == type) {
+          list.add(0 != bb.get(i));
+        } else {
+          list.add(OnnxJavaType.UINT8 == type ? bb.get(i) & 0xFFL : (long) bb.get(i));
+        }
+      }
+    }
+
+    return list;
+  }
+
+  private static long toIndex(Object index, long bound) throws WarpScriptException {
+    if (!(index instanceof Long) && !(index instanceof Integer)) {
+      throw new WarpScriptException("Sparse tensor indices must be LONGs.");
+    }
+    long idx = ((Number) index).longValue();
+    if (idx < 0 || idx >= bound) {
+      throw new WarpScriptException("Sparse tensor index " + idx + " out of bounds.");
+    }
+    return idx;
+  }
+
+  private static void checkCount(int indices, int values) throws WarpScriptException {
+    if (indices != values) {
+      throw new WarpScriptException("Sparse tensor has " + indices + " indices but " + values + " values.");
+    }
+  }
+}
@@ -17,23 +17,40 @@
 package io.warp10.ext.onnx;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.LongBuffer;
 import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import ai.onnxruntime.OnnxJavaType;
 import ai.onnxruntime.OnnxTensor;
-import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OnnxTensorLike;
 import ai.onnxruntime.OrtException;
+import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStackFunction;
 
 public class ONNXTENSOR extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  public static final String KEY_DATA = "data";
+  public static final String KEY_TYPE = "type";
+  public static final String KEY_SHAPE = "shape";
+  public static final String KEY_BYTEORDER = "byteorder";
+  public static final String KEY_FILL = "fill";
+  public static final String KEY_FILL_VALUE = "fill.value";
+  public static final String KEY_SPARSE = "sparse";
+
+  private static final String BYTEORDER_NATIVE = "NATIVE";
+
   public ONNXTENSOR(String name) {
     super(name);
   }
@@ -41,21 +58,74 @@ public class ONNXTENSOR extends NamedWarpScriptFunction implements WarpScriptSta
   @Override
   public Object apply(WarpScriptStack stack) throws WarpScriptException {
     Object top = stack.pop();
-    if (!(top instanceof List)) {
-      throw new WarpScriptException(getName() + " expects a shape (LIST)");
+
+    Object data;
+    Object typeName;
+    Object shapeList;
+    ByteOrder order = ByteOrder.nativeOrder();
+    String fill = ONNXGTSUtils.FILL_NONE;
+    double fillValue = 0.0D;
+    Object indices = null;
+    boolean sparse = false;
+
+    if (top instanceof Map) {
+      Map<Object,Object> params = (Map<Object,Object>) top;
+      data = params.get(KEY_DATA);
+      typeName = params.get(KEY_TYPE);
+      shapeList = params.get(KEY_SHAPE);
+
+      order = toByteOrder(getName(), params.get(KEY_BYTEORDER));
+
+      if (null != params.get(KEY_FILL)) {
+        fill = String.valueOf(params.get(KEY_FILL));
+        if (!ONNXGTSUtils.isFill(fill)) {
+          throw new WarpScriptException(getName() + " invalid '" + KEY_FILL + "', expected '" + ONNXGTSUtils.FILL_NONE + "', '" + ONNXGTSUtils.FILL_PREVIOUS + "', '" + ONNXGTSUtils.FILL_NEXT + "' or '" + ONNXGTSUtils.FILL_VALUE + "'.");
+        }
+      }
+
+      if (params.get(KEY_FILL_VALUE) instanceof Number) {
+        fillValue = ((Number) params.get(KEY_FILL_VALUE)).doubleValue();
+      }
+
+      // COO tensors are built either from 'indices' and 'values' or from a GTS
+      indices = params.get(ONNXSparse.KEY_INDICES);
+      if (null != indices) {
+        data = params.get(ONNXSparse.KEY_VALUES);
+        sparse = true;
+      } else {
+        sparse = Boolean.TRUE.equals(params.get(KEY_SPARSE));
+        if (sparse && !(data instanceof GeoTimeSerie)) {
+          throw new WarpScriptException(getName() + " sparse tensors expect '" + ONNXSparse.KEY_INDICES + "' and '" + ONNXSparse.KEY_VALUES + "' or a GTS as '" + KEY_DATA + "'.");
+        }
+      }
+    } else {
+      shapeList = top;
+      typeName = stack.pop();
+      data = stack.pop();
     }
 
-    List list = (List) top;
-    long[] shape = new long[list.size()];
-    for (int i = 0; i < list.size(); i++) {
-      if (!((list.get(i)) instanceof Long)) {
-        throw new WarpScriptException("Shape argument has a non LONG object at pos " + i);
+    // The shape of tensors built from GTS or vectors can be inferred
+    boolean series = data instanceof GeoTimeSerie || data instanceof double[] || data instanceof long[] || isGTSList(data);
+
+    long[] shape = null;
+
+    // The dense shape of a sparse tensor built from a bucketized GTS is the bucket count
+    if (null != shapeList || !(series || (sparse && null == indices))) {
+      if (!(shapeList instanceof List)) {
+        throw new WarpScriptException(getName() + " expects a shape (LIST)");
+      }
+
+      List list = (List) shapeList;
+      shape = new long[list.size()];
+      for (int i = 0; i < list.size(); i++) {
+        if (!((list.get(i)) instanceof Long)) {
+          throw new WarpScriptException("Shape argument has a non LONG object at pos " + i);
+        }
+        shape[i] = (Long) list.get(i);
       }
-      shape[i] = (Long) list.get(i);
     }
 
-    top = stack.pop();
-    if (!(top instanceof String)) {
+    if (!(typeName instanceof String)) {
 
       StringBuilder sb = new StringBuilder();
       for (OnnxJavaType ot: OnnxJavaType.values()) {
@@ -65,71 +135,102 @@ public class ONNXTENSOR extends NamedWarpScriptFunction implements WarpScriptSta
       sb.append(" ]");
       throw new WarpScriptException(getName() + " expects an ONNX JAVA TYPE as a STRING. One of: [" + sb);
     }
-    OnnxJavaType type = OnnxJavaType.valueOf((String) top);
+    OnnxJavaType type = OnnxJavaType.valueOf((String) typeName);
 
-    top = stack.pop();
-    if (!(top instanceof List || top instanceof byte[])) {
-      throw new WarpScriptException(getName() + " expects input data as LIST or BYTES");
+    if (!sparse && !series && null != data && !(data instanceof List || data instanceof byte[])) {
+      throw new WarpScriptException(getName() + " expects input data as LIST, BYTES, GTS, LIST of GTS, vector or NULL");
     }
 
-    OnnxTensor tensor;
+    long start = System.nanoTime();
+
+    OnnxTensorLike tensor;
     try {
 
-      if (top instanceof byte[]) {
-        tensor = OnnxTensor.createTensor(OrtEnvironment.getEnvironment(), ByteBuffer.wrap((byte[]) top), shape, type);
+      //
+      // Tensor content is written to native ordered direct buffers, which ONNX Runtime
+      // uses in place instead of copying them to native memory
+      //
+
+      if (sparse) {
+        if (OnnxJavaType.STRING == type) {
+          throw new WarpScriptException(getName() + " cannot create a sparse tensor of type " + type + ".");
+        }
+        if (null != indices) {
+          tensor = ONNXSparse.create(indices, data, type, shape);
+        } else {
+          tensor = ONNXSparse.fromGTS((GeoTimeSerie) data, type, shape);
+        }
+      } else if (null == data) {
+        // Zero filled tensor, typically used as a pinned output of ONNX.RUN
+        tensor = new ONNXTensorBuilder(type, shape).build();
+      } else if (series) {
+        tensor = fromSeries(data, type, shape, fill, fillValue);
+      } else if (data instanceof byte[]) {
+        // Only numeric types have a fixed element size
+        if (OnnxJavaType.STRING == type || 0 == type.size) {
+          throw new WarpScriptException(getName() + " cannot create a tensor of type " + type + " from BYTES.");
+        }
+        if (0 != ((byte[]) data).length % type.size) {
+          throw new WarpScriptException(getName() + " BYTES length is not a multiple of the size of " + type + ".");
+        }
+        tensor = ONNXUtils.createTensor((byte[]) data, order, shape, type);
 
       } else {
-        List data = (List) top;
-        int size = flattenSize(data);
+        List values = (List) data;
+        int size = flattenSize(values);
 
         switch (type) {
           case FLOAT:
-            FloatBuffer floatBuffer = FloatBuffer.allocate(size);
-            loadFLOAT(data, floatBuffer);
-            floatBuffer.rewind();
-            tensor = OnnxTensor.createTensor(OrtEnvironment.getEnvironment(), floatBuffer, shape);
+            ByteBuffer floatBytes = ONNXUtils.allocate(size * type.size);
+            loadFLOAT(values, floatBytes.asFloatBuffer());
+            tensor = ONNXUtils.createTensor(floatBytes, shape, type);
             break;
           case DOUBLE:
-            DoubleBuffer doubleBuffer = DoubleBuffer.allocate(size);
-            loadDOUBLE(data, doubleBuffer);
-            doubleBuffer.rewind();
-            tensor = OnnxTensor.createTensor(OrtEnvironment.getEnvironment(), doubleBuffer, shape);
+            ByteBuffer doubleBytes = ONNXUtils.allocate(size * type.size);
+            loadDOUBLE(values, doubleBytes.asDoubleBuffer());
+            tensor = ONNXUtils.createTensor(doubleBytes, shape, type);
             break;
           case UINT8:
           case INT8:
-            ByteBuffer byteBuffer = ByteBuffer.allocate(size);
-            loadINT8(data, byteBuffer);
+            ByteBuffer byteBuffer = ONNXUtils.allocate(size);
+            loadINT8(values, byteBuffer);
             byteBuffer.rewind();
-            tensor = OnnxTensor.createTensor(OrtEnvironment.getEnvironment(), byteBuffer, shape, type);
+            tensor = OnnxTensor.createTensor(ONNXWarpScriptExtension.getEnvironment(), byteBuffer, shape, type);
             break;
           case INT16:
-            ShortBuffer shortBuffer = ShortBuffer.allocate(size);
-            loadINT16(data, shortBuffer);
-            shortBuffer.rewind();
-            tensor = OnnxTensor.createTensor(OrtEnvironment.getEnvironment(), shortBuffer, shape);
+            ByteBuffer shortBytes = ONNXUtils.allocate(size * type.size);
+            loadINT16(values, shortBytes.asShortBuffer());
+            tensor = ONNXUtils.createTensor(shortBytes, shape, type);
             break;
           case INT32:
-            IntBuffer intBuffer = IntBuffer.allocate(size);
-            loadINT32(data, intBuffer);
-            intBuffer.rewind();
-            tensor = OnnxTensor.createTensor(OrtEnvironment.getEnvironment(), intBuffer, shape);
+            ByteBuffer intBytes = ONNXUtils.allocate(size * type.size);
+            loadINT32(values, intBytes.asIntBuffer());
+            tensor = ONNXUtils.createTensor(intBytes, shape, type);
             break;
           case INT64:
-            LongBuffer longBuffer = LongBuffer.allocate(size);
-            loadINT64(data, longBuffer);
-            longBuffer.rewind();
-            tensor = OnnxTensor.createTensor(OrtEnvironment.getEnvironment(), longBuffer, shape);
+            ByteBuffer longBytes = ONNXUtils.allocate(size * type.size);
+            loadINT64(values, longBytes.asLongBuffer());
+            tensor = ONNXUtils.createTensor(longBytes, shape, type);
             break;
           case BOOL:
-            ByteBuffer boolBuffer = ByteBuffer.allocate(size);
-            loadBOOL(data, boolBuffer);
+            ByteBuffer boolBuffer = ONNXUtils.allocate(size);
+            loadBOOL(values, boolBuffer);
             boolBuffer.rewind();
-            tensor = OnnxTensor.createTensor(OrtEnvironment.getEnvironment(), boolBuffer, shape, type);
+            tensor = OnnxTensor.createTensor(ONNXWarpScriptExtension.getEnvironment(), boolBuffer, shape, type);
+            break;
+          case FLOAT16:
+          case BFLOAT16:
+            ONNXTensorBuilder builder = new ONNXTensorBuilder(type, shape);
+            if (size != builder.size()) {
+              throw new WarpScriptException(getName() + " data size does not match the shape.");
+            }
+            loadHALF(values, builder, 0);
+            tensor = builder.build();
             break;
           case STRING:
             String[] a = new String[size];
-            loadSTRING(data, a, 0);
-            tensor = OnnxTensor.createTensor(OrtEnvironment.getEnvironment(), a, shape);
+            loadSTRING(values, a, 0);
+            tensor = OnnxTensor.createTensor(ONNXWarpScriptExtension.getEnvironment(), a, shape);
             break;
           case UNKNOWN:
           default:
@@ -142,11 +243,124 @@ public class ONNXTENSOR extends NamedWarpScriptFunction implements WarpScriptSta
       throw new WarpScriptException("Error while creating an ONNX Tensor.", oe);
     }
 
+    ONNXScope scope = ONNXScope.get(stack);
+    if (null != scope) {
+      scope.register(tensor);
+      // The tensor is closed with the scope if it does not fit in the budget
+      scope.checkBudget(getName(), 0L);
+      // Tensors are accounted to the model of the innermost ONNX call
+      if (null != scope.getMetrics()) {
+        scope.getMetrics().record(ONNXMetrics.PHASE_TENSOR, start);
+      }
+    }
+
     stack.push(tensor);
 
     return stack;
   }
 
+  private static boolean isGTSList(Object data) {
+    if (!(data instanceof List) || ((List) data).isEmpty()) {
+      return false;
+    }
+    Object first = ((List) data).get(0);
+    if (first instanceof List && !((List) first).isEmpty()) {
+      first = ((List) first).get(0);
+    }
+    return first instanceof GeoTimeSerie;
+  }
+
+  /**
+   * Build a tensor from a GTS ([1,T,1]), a LIST of GTS aligned on their ticks ([1,T,C]),
+   * a LIST of such LISTs ([N,T,C]) or a DOUBLE or LONG vector ([size]). If a shape is
+   * specified it must have the same number of elements as the inferred one.
+   */
+  private OnnxTensor fromSeries(Object data, OnnxJavaType type, long[] shape, String fill, double fillValue) throws WarpScriptException, OrtException {
+    ONNXTensorBuilder builder;
+
+    if (data instanceof double[] || data instanceof long[]) {
+      int len = data instanceof double[] ? ((double[]) data).length : ((long[]) data).length;
+      builder = new ONNXTensorBuilder(type, checkShape(shape, new long[] { len }));
+
+      if (data instanceof double[]) {
+        double[] vector = (double[]) data;
+        for (int i = 0; i < len; i++) {
+          builder.set(i, vector[i]);
+        }
+      } else {
+        long[] vector = (long[]) data;
+        for (int i = 0; i < len; i++) {
+          builder.set(i, vector[i]);
+        }
+      }
+
+      return builder.build();
+    }
+
+    List<List<GeoTimeSerie>> batches = new ArrayList<List<GeoTimeSerie>>();
+
+    if (data instanceof GeoTimeSerie) {
+      batches.add(Collections.singletonList((GeoTimeSerie) data));
+    } else if (((List) data).get(0) instanceof GeoTimeSerie) {
+      batches.add(checkGTSList((List) data));
+    } else {
+      for (Object elt: (List) data) {
+        if (!(elt instanceof List)) {
+          throw new WarpScriptException(getName() + " expects a LIST of LISTs of GTS.");
+        }
+        batches.add(checkGTSList((List) elt));
+      }
+    }
+
+    List<ONNXGTSUtils.Aligned> aligned = new ArrayList<ONNXGTSUtils.Aligned>(batches.size());
+
+    int steps = -1;
+    int channels = -1;
+
+    for (List<GeoTimeSerie> batch: batches) {
+      ONNXGTSUtils.Aligned a = ONNXGTSUtils.align(batch, fill, fillValue);
+      if (-1 == steps) {
+        steps = a.ticks.length;
+        channels = a.columns.length;
+      } else if (steps != a.ticks.length || channels != a.columns.length) {
+        throw new WarpScriptException(getName() + " all batches must have the same number of GTS and of aligned ticks.");
+      }
+      aligned.add(a);
+    }
+
+    builder = new ONNXTensorBuilder(type, checkShape(shape, new long[] { batches.size(), steps, channels }));
+
+    int idx = 0;
+    for (ONNXGTSUtils.Aligned a: aligned) {
+      for (int t = 0; t < steps; t++) {
+        for (int c = 0; c < channels; c++) {
+          builder.set(idx++, a.columns[c][t]);
+        }
+      }
+    }
+
+    return builder.build();
+  }
+
+  private List<GeoTimeSerie> checkGTSList(List list) throws WarpScriptException {
+    for (Object elt: list) {
+      if (!(elt instanceof GeoTimeSerie)) {
+        throw new WarpScriptException(getName() + " expects a LIST of GTS.");
+      }
+    }
+    return (List<GeoTimeSerie>) list;
+  }
+
+  private long[] checkShape(long[] shape, long[] inferred) throws WarpScriptException {
+    if (null == shape) {
+      return inferred;
+    }
+    if (ONNXTensorBuilder.elements(shape) != ONNXTensorBuilder.elements(inferred)) {
+      throw new WarpScriptException(getName() + " shape " + Arrays.toString(shape) + " is incompatible with inferred shape " + Arrays.toString(inferred) + ".");
+    }
+    return shape;
+  }
+
   private int flattenSize(List list) {
     int c = 0;
     for (Object o: list) {
@@ -160,6 +374,23 @@ public class ONNXTENSOR extends NamedWarpScriptFunction implements WarpScriptSta
     return c;
   }
 
+  /**
+   * Return the byte order of a 'byteorder' value, the native order if it is null
+   *
+   * @param function Name of the calling function, used in error messages
+   */
+  static ByteOrder toByteOrder(String function, Object bo) throws WarpScriptException {
+    if (null == bo || BYTEORDER_NATIVE.equals(bo)) {
+      return ByteOrder.nativeOrder();
+    } else if (ByteOrder.BIG_ENDIAN.toString().equals(bo)) {
+      return ByteOrder.BIG_ENDIAN;
+    } else if (ByteOrder.LITTLE_ENDIAN.toString().equals(bo)) {
+      return ByteOrder.LITTLE_ENDIAN;
+    } else {
+      throw new WarpScriptException(function + " invalid '" + KEY_BYTEORDER + "', expected " + ByteOrder.BIG_ENDIAN + ", " + ByteOrder.LITTLE_ENDIAN + " or " + BYTEORDER_NATIVE + ".");
+    }
+  }
+
   private void loadFLOAT(List l, FloatBuffer b){
     for(Object o: l) {
       if (o instanceof List) {
@@ -236,6 +467,17 @@ public class ONNXTENSOR extends NamedWarpScriptFunction implements WarpScriptSta
     }
   }
 
+  private int loadHALF(List l, ONNXTensorBuilder b, int pos){
+    for(Object o: l) {
+      if (o instanceof List) {
+        pos = loadHALF((List) o, b, pos);
+      } else {
+        b.set(pos++, ((Number) o).doubleValue());
+      }
+    }
+    return pos;
+  }
+
   private int loadSTRING(List l, String[] a, int pos){
     for(Object o: l) {
       if (o instanceof List) {
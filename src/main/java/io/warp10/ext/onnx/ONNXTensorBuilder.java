@@ -0,0 +1,196 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtException;
+import io.warp10.script.WarpScriptException;
+
+/**
+ * Fills the native ordered direct buffer of a numeric tensor element by element,
+ * from primitive values, converting them to the tensor type.
+ */
+public class ONNXTensorBuilder {
+
+  private final OnnxJavaType type;
+  private final long[] shape;
+  private final int size;
+
+  private final ByteBuffer buffer;
+  private final FloatBuffer floats;
+  private final DoubleBuffer doubles;
+  private final ShortBuffer shorts;
+  private final IntBuffer ints;
+  private final LongBuffer longs;
+
+  public ONNXTensorBuilder(OnnxJavaType type, long[] shape) throws WarpScriptException {
+    switch (type) {
+      case FLOAT:
+      case DOUBLE:
+      case INT8:
+      case UINT8:
+      case INT16:
+      case INT32:
+      case INT64:
+      case BOOL:
+      case FLOAT16:
+      case BFLOAT16:
+        break;
+      default:
+        throw new WarpScriptException("Unsupported tensor type " + type + ", expected a numeric or BOOL type.");
+    }
+
+    this.type = type;
+    this.shape = shape;
+    this.size = elements(shape);
+
+    if ((long) size * type.size > Integer.MAX_VALUE) {
+      throw new WarpScriptException("Tensor too large.");
+    }
+
+    this.buffer = ONNXUtils.allocate(size * type.size);
+    this.floats = OnnxJavaType.FLOAT == type ? buffer.asFloatBuffer() : null;
+    this.doubles = OnnxJavaType.DOUBLE == type ? buffer.asDoubleBuffer() : null;
+    this.shorts = 2 == type.size ? buffer.asShortBuffer() : null;
+    this.ints = OnnxJavaType.INT32 == type ? buffer.asIntBuffer() : null;
+    this.longs = OnnxJavaType.INT64 == type ? buffer.asLongBuffer() : null;
+  }
+
+  /**
+   * Number of elements of a tensor of the given shape
+   */
+  public static int elements(long[] shape) throws WarpScriptException {
+    long size = 1L;
+    for (long dim: shape) {
+      if (dim < 0) {
+        throw new WarpScriptException("Invalid tensor dimension " + dim + ".");
+      }
+      size *= dim;
+      if (size > Integer.MAX_VALUE) {
+        throw new WarpScriptException("Tensor too large.");
+      }
+    }
+    return (int) size;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public long[] getShape() {
+    return shape;
+  }
+
+  public OnnxJavaType getType() {
+    return type;
+  }
+
+  public void set(int index, double value) {
+    switch (type) {
+      case FLOAT:
+        floats.put(index, (float) value);
+        break;
+      case DOUBLE:
+        doubles.put(index, value);
+        break;
+      case INT8:
+      case UINT8:
+        buffer.put(index, (byte) (long) value);
+        break;
+      case INT16:
+        shorts.put(index, (short) (long) value);
+        break;
+      case INT32:
+        ints.put(index, (int) (long) value);
+        break;
+      case INT64:
+        longs.put(index, (long) value);
+        break;
+      case BOOL:
+        buffer.put(index, (byte) (0.0D != value ? 1 : 0));
+        break;
+      case FLOAT16:
+      case BFLOAT16:
+        shorts.put(index, ONNXUtils.toHalf(type, (float) value));
+        break;
+      default:
+    }
+  }
+
+  public void set(int index, long value) {
+    switch (type) {
+      case FLOAT:
+        floats.put(index, (float) value);
+        break;
+      case DOUBLE:
+        doubles.put(index, (double) value);
+        break;
+      case INT8:
+      case UINT8:
+        buffer.put(index, (byte) value);
+        break;
+      case INT16:
+        shorts.put(index, (short) value);
+        break;
+      case INT32:
+        ints.put(index, (int) value);
+        break;
+      case INT64:
+        longs.put(index, value);
+        break;
+      case BOOL:
+        buffer.put(index, (byte) (0L != value ? 1 : 0));
+        break;
+      case FLOAT16:
+      case BFLOAT16:
+        shorts.put(index, ONNXUtils.toHalf(type, (float) value));
+        break;
+      default:
+    }
+  }
+
+  /**
+   * Set all the elements to the same value
+   */
+  public void fill(double value) {
+    for (int i = 0; i < size; i++) {
+      set(i, value);
+    }
+  }
+
+  /**
+   * Underlying buffer, in native byte order
+   */
+  ByteBuffer getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * Create the tensor, it uses the buffer of the builder in place
+   */
+  public OnnxTensor build() throws OrtException, WarpScriptException {
+    return ONNXUtils.createTensor(buffer, shape, type);
+  }
+}
@@ -0,0 +1,304 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtException;
+import io.warp10.script.WarpScriptException;
+
+/**
+ * Reshaping, concatenation and slicing of numeric tensors.
+ *
+ * Tensors created by the extension are backed by native ordered direct buffers, which are read in
+ * place: reshaping shares the buffer of the tensor and slicing or concatenating copies the content
+ * block by block from direct buffer to direct buffer. The content of tensors allocated by ONNX
+ * Runtime, such as the outputs of a run which were not pinned, can only be read through a copy
+ * to the Java heap made by ONNX Runtime.
+ */
+public class ONNXTensorOps {
+
+  /**
+   * Check that a value popped from the stack is an open tensor
+   *
+   * @param function Name of the calling function, used in error messages
+   */
+  static OnnxTensor checkTensor(String function, Object value) throws WarpScriptException {
+    if (!(value instanceof OnnxTensor)) {
+      throw new WarpScriptException(function + " operates on a tensor.");
+    }
+    if (ONNXScope.isClosed(value)) {
+      throw new WarpScriptException(function + " tensor was closed.");
+    }
+    return (OnnxTensor) value;
+  }
+
+  /**
+   * Raw content of a tensor in native byte order, the direct buffer backing the tensor if any,
+   * a heap copy of its content otherwise
+   */
+  public static ByteBuffer content(OnnxTensor tensor) {
+    ByteBuffer buffer = direct(tensor);
+    return null != buffer ? buffer : tensor.getByteBuffer().order(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * Direct buffer backing a tensor, in native byte order, null if the tensor is not backed by a
+   * direct ByteBuffer
+   */
+  static ByteBuffer direct(OnnxTensor tensor) {
+    Optional<Buffer> ref = tensor.getBufferRef();
+
+    if (!ref.isPresent() || !(ref.get() instanceof ByteBuffer) || !ref.get().isDirect()) {
+      return null;
+    }
+
+    // Duplicates are big endian
+    ByteBuffer buffer = ((ByteBuffer) ref.get()).duplicate().order(ByteOrder.nativeOrder());
+    buffer.rewind();
+    return buffer;
+  }
+
+  /**
+   * Reshape a tensor to a new shape holding the same number of elements, one dimension may be -1
+   * in which case it is inferred. A tensor backed by a direct buffer is not copied, the new tensor
+   * shares its buffer.
+   */
+  public static OnnxTensor reshape(OnnxTensor tensor, long[] shape) throws OrtException, WarpScriptException {
+    long[] current = tensor.getInfo().getShape();
+    long elements = ONNXTensorBuilder.elements(current);
+
+    shape = shape.clone();
+    int inferred = -1;
+    long known = 1L;
+
+    for (int d = 0; d < shape.length; d++) {
+      if (-1L == shape[d] && -1 == inferred) {
+        inferred = d;
+      } else if (shape[d] < 0L) {
+        throw new WarpScriptException("Invalid shape " + Arrays.toString(shape) + ", at most one dimension can be -1.");
+      } else {
+        known *= shape[d];
+      }
+    }
+
+    if (-1 != inferred && known > 0L && 0L == elements % known) {
+      shape[inferred] = elements / known;
+      known = elements;
+    }
+
+    if (known != elements) {
+      throw new WarpScriptException("Cannot reshape a tensor of shape " + Arrays.toString(current) + " to " + Arrays.toString(shape) + ".");
+    }
+
+    ByteBuffer buffer = direct(tensor);
+
+    if (null != buffer) {
+      return ONNXUtils.createTensor(buffer, shape, tensor.getInfo().type);
+    }
+
+    ONNXTensorBuilder builder = new ONNXTensorBuilder(tensor.getInfo().type, shape);
+    builder.getBuffer().duplicate().put(content(tensor));
+    return builder.build();
+  }
+
+  /**
+   * Concatenate tensors along an axis. The tensors must have the same type and rank, other
+   * dimensions which differ are padded to their largest size with the pad value, if pad is null
+   * they must be identical.
+   */
+  public static OnnxTensor concat(List<OnnxTensor> tensors, int axis, Double pad) throws OrtException, WarpScriptException {
+    if (tensors.isEmpty()) {
+      throw new WarpScriptException("Cannot concatenate an empty list of tensors.");
+    }
+
+    OnnxJavaType type = tensors.get(0).getInfo().type;
+    int rank = tensors.get(0).getInfo().getShape().length;
+
+    if (axis < 0 || axis >= rank) {
+      throw new WarpScriptException("Invalid concatenation axis " + axis + " for tensors of rank " + rank + ".");
+    }
+
+    long[] shape = new long[rank];
+
+    for (OnnxTensor tensor: tensors) {
+      long[] s = tensor.getInfo().getShape();
+
+      if (type != tensor.getInfo().type) {
+        throw new WarpScriptException("Cannot concatenate tensors of types " + type + " and " + tensor.getInfo().type + ".");
+      }
+      if (rank != s.length) {
+        throw new WarpScriptException("Cannot concatenate tensors of ranks " + rank + " and " + s.length + ".");
+      }
+
+      for (int d = 0; d < rank; d++) {
+        if (d == axis) {
+          shape[d] += s[d];
+        } else if (shape[d] != s[d] && tensor != tensors.get(0) && null == pad) {
+          throw new WarpScriptException("Cannot concatenate tensors of shapes " + Arrays.toString(tensors.get(0).getInfo().getShape()) + " and " + Arrays.toString(s) + " without padding.");
+        } else {
+          shape[d] = Math.max(shape[d], s[d]);
+        }
+      }
+    }
+
+    ONNXTensorBuilder builder = new ONNXTensorBuilder(type, shape);
+
+    if (null != pad && 0.0D != pad) {
+      builder.fill(pad);
+    }
+
+    long[] srcOffset = new long[rank];
+    long[] dstOffset = new long[rank];
+
+    for (OnnxTensor tensor: tensors) {
+      long[] s = tensor.getInfo().getShape();
+      copy(content(tensor), s, srcOffset, builder.getBuffer(), shape, dstOffset, s, type.size);
+      dstOffset[axis] += s[axis];
+    }
+
+    return builder.build();
+  }
+
+  /**
+   * Extract elements [start,end[ along an axis of a tensor, negative start and end are counted
+   * from the end of the dimension
+   */
+  public static OnnxTensor slice(OnnxTensor tensor, int axis, long start, long end) throws OrtException, WarpScriptException {
+    long[] shape = tensor.getInfo().getShape();
+
+    if (axis >= 0 && axis < shape.length) {
+      start = start < 0L ? shape[axis] + start : start;
+      end = end < 0L ? shape[axis] + end : end;
+    }
+
+    return slice(content(tensor), shape, tensor.getInfo().type, axis, start, end);
+  }
+
+  /**
+   * Extract elements [start,end[ along an axis of a tensor
+   *
+   * @param content Content of the tensor as returned by content, so slicing several times only reads the tensor once
+   */
+  public static OnnxTensor slice(ByteBuffer content, long[] shape, OnnxJavaType type, int axis, long start, long end) throws OrtException, WarpScriptException {
+    if (axis < 0 || axis >= shape.length) {
+      throw new WarpScriptException("Invalid slice axis " + axis + " for a tensor of rank " + shape.length + ".");
+    }
+    if (start < 0 || end > shape[axis] || start > end) {
+      throw new WarpScriptException("Invalid slice [" + start + "," + end + "[ of a dimension of size " + shape[axis] + ".");
+    }
+
+    long[] sliced = shape.clone();
+    sliced[axis] = end - start;
+
+    long[] srcOffset = new long[shape.length];
+    srcOffset[axis] = start;
+
+    ONNXTensorBuilder builder = new ONNXTensorBuilder(type, sliced);
+    copy(content, shape, srcOffset, builder.getBuffer(), sliced, new long[shape.length], sliced, type.size);
+    return builder.build();
+  }
+
+  /**
+   * Copy a block of elements between two buffers holding tensors of the same rank
+   *
+   * @param block Shape of the block to copy
+   * @param esize Size of an element in bytes
+   */
+  private static void copy(ByteBuffer src, long[] srcShape, long[] srcOffset, ByteBuffer dst, long[] dstShape, long[] dstOffset, long[] block, int esize) {
+    int rank = block.length;
+
+    for (long dim: block) {
+      if (0 == dim) {
+        return;
+      }
+    }
+
+    if (0 == rank) {
+      transfer(src, 0, dst, 0, esize);
+      return;
+    }
+
+    long[] srcStrides = strides(srcShape);
+    long[] dstStrides = strides(dstShape);
+
+    //
+    // Trailing dimensions entirely covered by the block in both tensors are contiguous,
+    // copy runs spanning them instead of individual rows
+    //
+
+    int d = rank - 1;
+    long run = block[d];
+
+    while (d > 0 && block[d] == srcShape[d] && block[d] == dstShape[d]) {
+      d--;
+      run *= block[d];
+    }
+
+    long rows = 1L;
+    for (int i = 0; i < d; i++) {
+      rows *= block[i];
+    }
+
+    long[] index = new long[d];
+
+    for (long row = 0; row < rows; row++) {
+      long s = srcOffset[d] * srcStrides[d];
+      long t = dstOffset[d] * dstStrides[d];
+
+      for (int i = 0; i < d; i++) {
+        s += (srcOffset[i] + index[i]) * srcStrides[i];
+        t += (dstOffset[i] + index[i]) * dstStrides[i];
+      }
+
+      transfer(src, (int) (s * esize), dst, (int) (t * esize), (int) (run * esize));
+
+      for (int i = d - 1; i >= 0; i--) {
+        if (++index[i] < block[i]) {
+          break;
+        }
+        index[i] = 0;
+      }
+    }
+  }
+
+  private static long[] strides(long[] shape) {
+    long[] strides = new long[shape.length];
+    long stride = 1L;
+    for (int i = shape.length - 1; i >= 0; i--) {
+      strides[i] = stride;
+      stride *= shape[i];
+    }
+    return strides;
+  }
+
+  private static void transfer(ByteBuffer src, int from, ByteBuffer dst, int to, int length) {
+    ByteBuffer s = src.duplicate();
+    s.position(from);
+    s.limit(from + length);
+    ByteBuffer t = dst.duplicate();
+    t.position(to);
+    t.put(s);
+  }
+}
@@ -17,21 +17,130 @@
 package io.warp10.ext.onnx;
 
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import ai.onnxruntime.OnnxJavaType;
 import ai.onnxruntime.OnnxMap;
 import ai.onnxruntime.OnnxSequence;
+import ai.onnxruntime.OnnxSparseTensor;
 import ai.onnxruntime.OnnxTensor;
 import ai.onnxruntime.OnnxValue;
+import ai.onnxruntime.OrtEnvironment;
 import ai.onnxruntime.OrtException;
+import ai.onnxruntime.platform.Fp16Conversions;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.WarpScriptException;
 
 public class ONNXUtils {
 
+  /**
+   * Nested LISTs of LONG, DOUBLE, BOOLEAN or STRING
+   */
+  public static final String FORMAT_LIST = "LIST";
+
+  /**
+   * Raw tensor content in native byte order
+   */
+  public static final String FORMAT_BYTES = "BYTES";
+
+  /**
+   * Flattened tensor content as a DOUBLE vector for floating point types or a LONG vector otherwise
+   */
+  public static final String FORMAT_VECTOR = "VECTOR";
+
+  /**
+   * Tensor rows as GTS values, one GTS per element of the last dimension, the tick is the row index
+   */
+  public static final String FORMAT_GTS = "GTS";
+
+  /**
+   * Sparse COO representation, see ONNXSparse, for sparse tensors and the non zero elements of numeric tensors
+   */
+  public static final String FORMAT_SPARSE = "SPARSE";
+
+  /**
+   * The ONNX value itself, kept in native memory until the end of the enclosing ONNX macro or ONNX.CLOSE
+   */
+  public static final String FORMAT_TENSOR = "TENSOR";
+
+  /**
+   * Label holding the index in the last dimension of the GTS produced by FORMAT_GTS
+   */
+  public static final String GTS_INDEX_LABEL = "index";
+
+  public static boolean isFormat(String format) {
+    return FORMAT_LIST.equals(format) || FORMAT_BYTES.equals(format) || FORMAT_VECTOR.equals(format) || FORMAT_GTS.equals(format) || FORMAT_SPARSE.equals(format) || FORMAT_TENSOR.equals(format);
+  }
+
+  /**
+   * Allocate a direct buffer in native byte order, such buffers are used in place by ONNX Runtime
+   */
+  public static ByteBuffer allocate(int size) {
+    return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * Create a tensor backed by a native ordered direct buffer holding elements of the given type.
+   * The tensor keeps the ByteBuffer itself as its buffer, so ONNXTensorOps can read it in place.
+   */
+  public static OnnxTensor createTensor(ByteBuffer buffer, long[] shape, OnnxJavaType type) throws OrtException, WarpScriptException {
+    OrtEnvironment env = ONNXWarpScriptExtension.getEnvironment();
+
+    switch (type) {
+      case FLOAT:
+      case DOUBLE:
+      case INT16:
+      case INT32:
+      case INT64:
+      case INT8:
+      case UINT8:
+      case BOOL:
+      case FLOAT16:
+      case BFLOAT16:
+        return OnnxTensor.createTensor(env, buffer, shape, type);
+      default:
+        throw new WarpScriptException("Unsupported tensor type " + type + ".");
+    }
+  }
+
+  /**
+   * Create a tensor from raw content in the given byte order, the content is copied to a native ordered direct buffer
+   */
+  public static OnnxTensor createTensor(byte[] data, ByteOrder order, long[] shape, OnnxJavaType type) throws OrtException, WarpScriptException {
+    ByteBuffer bytes = ByteBuffer.wrap(data).order(order);
+    ByteBuffer buffer = allocate(bytes.remaining());
+
+    // Bulk copies between views of different byte orders swap the bytes of each element
+    switch (type.size) {
+      case 8:
+        buffer.asLongBuffer().put(bytes.asLongBuffer());
+        break;
+      case 4:
+        buffer.asIntBuffer().put(bytes.asIntBuffer());
+        break;
+      case 2:
+        buffer.asShortBuffer().put(bytes.asShortBuffer());
+        break;
+      default:
+        buffer.put(bytes);
+        buffer.rewind();
+    }
+
+    return createTensor(buffer, shape, type);
+  }
+
   public static Object fromONNXValue(OnnxValue value) throws WarpScriptException {
     try {
       switch(value.getType()) {
@@ -43,8 +152,13 @@ public class ONNXUtils {
           //List<Object> list = ((OnnxSequence) value).getValue();
           List list = ((OnnxSequence) value).getValue();
           return sanitize(list);
-        case ONNX_TYPE_TENSOR:
         case ONNX_TYPE_SPARSETENSOR:
+          return ONNXSparse.toMap((OnnxSparseTensor) value);
+        case ONNX_TYPE_TENSOR:
+          // ONNX Runtime cannot return the value of half precision tensors
+          if (value instanceof OnnxTensor && isHalf(((OnnxTensor) value).getInfo().type)) {
+            return toList((double[]) toVector((OnnxTensor) value), ((OnnxTensor) value).getInfo().getShape(), 0, 0);
+          }
           Object tensor = ((OnnxTensor) value).getValue();
           return sanitize(tensor);
         case ONNX_TYPE_OPAQUE:
@@ -57,6 +171,190 @@ public class ONNXUtils {
     }
   }
 
+  /**
+   * Convert an ONNX value using the given output format. Formats other than FORMAT_LIST read
+   * the tensor buffers directly and only apply to numeric or BOOL tensors.
+   *
+   * @param name Name of the output, used to name GTS
+   */
+  public static Object fromONNXValue(OnnxValue value, String name, String format) throws WarpScriptException {
+    if (null == format || FORMAT_LIST.equals(format)) {
+      return fromONNXValue(value);
+    }
+
+    // The caller is responsible for keeping the value open
+    if (FORMAT_TENSOR.equals(format)) {
+      return value;
+    }
+
+    if (FORMAT_SPARSE.equals(format)) {
+      if (value instanceof OnnxSparseTensor) {
+        return ONNXSparse.toMap((OnnxSparseTensor) value);
+      } else if (value instanceof OnnxTensor) {
+        return ONNXSparse.toMap((OnnxTensor) value);
+      }
+    }
+
+    if (!(value instanceof OnnxTensor) || OnnxJavaType.STRING == ((OnnxTensor) value).getInfo().type) {
+      throw new WarpScriptException("Output '" + name + "' can only be converted to " + FORMAT_LIST + ".");
+    }
+
+    OnnxTensor tensor = (OnnxTensor) value;
+
+    if (FORMAT_BYTES.equals(format)) {
+      ByteBuffer bb = tensor.getByteBuffer();
+      byte[] bytes = new byte[bb.remaining()];
+      bb.get(bytes);
+      return bytes;
+    }
+
+    Object vector = toVector(tensor);
+
+    if (FORMAT_VECTOR.equals(format)) {
+      return vector;
+    } else if (FORMAT_GTS.equals(format)) {
+      return toGTS(tensor, vector, name);
+    } else {
+      throw new WarpScriptException("Unknown output format '" + format + "'.");
+    }
+  }
+
+  public static boolean isHalf(OnnxJavaType type) {
+    return OnnxJavaType.FLOAT16 == type || OnnxJavaType.BFLOAT16 == type;
+  }
+
+  /**
+   * Convert a float to the bits of a FLOAT16 or BFLOAT16, rounding to the nearest even
+   */
+  public static short toHalf(OnnxJavaType type, float value) {
+    return OnnxJavaType.BFLOAT16 == type ? Fp16Conversions.floatToBf16(value) : Fp16Conversions.floatToFp16(value);
+  }
+
+  /**
+   * Convert the bits of a FLOAT16 or BFLOAT16 to a float
+   */
+  public static float fromHalf(OnnxJavaType type, short bits) {
+    return OnnxJavaType.BFLOAT16 == type ? Fp16Conversions.bf16ToFloat(bits) : Fp16Conversions.fp16ToFloat(bits);
+  }
+
+  /**
+   * Flattened content of a numeric tensor as a double[] or a long[]
+   */
+  private static Object toVector(OnnxTensor tensor) throws WarpScriptException {
+    switch (tensor.getInfo().type) {
+      case FLOAT:
+        FloatBuffer fb = tensor.getFloatBuffer();
+        double[] floats = new double[fb.remaining()];
+        for (int i = 0; i < floats.length; i++) {
+          floats[i] = fb.get(i);
+        }
+        return floats;
+      case DOUBLE:
+        DoubleBuffer db = tensor.getDoubleBuffer();
+        double[] doubles = new double[db.remaining()];
+        db.get(doubles);
+        return doubles;
+      case INT8:
+      case BOOL:
+        ByteBuffer bb = tensor.getByteBuffer();
+        long[] bytes = new long[bb.remaining()];
+        for (int i = 0; i < bytes.length; i++) {
+          bytes[i] = bb.get(i);
+        }
+        return bytes;
+      case UINT8:
+        ByteBuffer ub = tensor.getByteBuffer();
+        long[] ubytes = new long[ub.remaining()];
+        for (int i = 0; i < ubytes.length; i++) {
+          ubytes[i] = ub.get(i) & 0xFFL;
+        }
+        return ubytes;
+      case INT16:
+        ShortBuffer sb = tensor.getShortBuffer();
+        long[] shorts = new long[sb.remaining()];
+        for (int i = 0; i < shorts.length; i++) {
+          shorts[i] = sb.get(i);
+        }
+        return shorts;
+      case INT32:
+        IntBuffer ib = tensor.getIntBuffer();
+        long[] ints = new long[ib.remaining()];
+        for (int i = 0; i < ints.length; i++) {
+          ints[i] = ib.get(i);
+        }
+        return ints;
+      case INT64:
+        LongBuffer lb = tensor.getLongBuffer();
+        long[] longs = new long[lb.remaining()];
+        lb.get(longs);
+        return longs;
+      case FLOAT16:
+      case BFLOAT16:
+        ShortBuffer hb = tensor.getShortBuffer();
+        double[] halves = new double[hb.remaining()];
+        for (int i = 0; i < halves.length; i++) {
+          halves[i] = fromHalf(tensor.getInfo().type, hb.get(i));
+        }
+        return halves;
+      default:
+        throw new WarpScriptException("Unsupported tensor type " + tensor.getInfo().type + ".");
+    }
+  }
+
+  /**
+   * Convert the flattened content of a tensor to nested LISTs, starting at the given dimension and offset
+   */
+  private static Object toList(double[] vector, long[] shape, int dim, int offset) {
+    if (dim == shape.length) {
+      return vector[offset];
+    }
+
+    int stride = 1;
+    for (int d = dim + 1; d < shape.length; d++) {
+      stride *= (int) shape[d];
+    }
+
+    List<Object> list = new ArrayList<Object>((int) shape[dim]);
+    for (int i = 0; i < shape[dim]; i++) {
+      list.add(toList(vector, shape, dim + 1, offset + i * stride));
+    }
+
+    return list;
+  }
+
+  /**
+   * Convert the flattened content of a tensor to one GTS per element of the last dimension,
+   * or a single GTS if the tensor has a rank below 2 or a last dimension of 1.
+   */
+  private static Object toGTS(OnnxTensor tensor, Object vector, String name) {
+    long[] shape = tensor.getInfo().getShape();
+    int size = vector instanceof double[] ? ((double[]) vector).length : ((long[]) vector).length;
+    int columns = shape.length < 2 ? 1 : (int) shape[shape.length - 1];
+    int rows = 0 == columns ? 0 : size / columns;
+
+    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>(columns);
+
+    for (int c = 0; c < columns; c++) {
+      GeoTimeSerie gts = new GeoTimeSerie(rows);
+      gts.setName(name);
+      if (columns > 1) {
+        Map<String,String> labels = new HashMap<String,String>();
+        labels.put(GTS_INDEX_LABEL, Integer.toString(c));
+        gts.setLabels(labels);
+      }
+      for (int r = 0; r < rows; r++) {
+        if (vector instanceof double[]) {
+          GTSHelper.setValue(gts, r, ((double[]) vector)[r * columns + c]);
+        } else {
+          GTSHelper.setValue(gts, r, ((long[]) vector)[r * columns + c]);
+        }
+      }
+      series.add(gts);
+    }
+
+    return 1 == columns ? series.get(0) : series;
+  }
+
   private static Object sanitize(Object input) throws WarpScriptException {
     if (input instanceof Map) {
       // Check if any of the values is of type Float, if so we need to re-allocate a map
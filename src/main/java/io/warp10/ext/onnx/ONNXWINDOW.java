@@ -0,0 +1,288 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OnnxValue;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.Result;
+import ai.onnxruntime.TensorInfo;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+/**
+ * Run inference on the sliding windows of a GTS, or of a LIST of GTS aligned on their ticks.
+ *
+ * The windows are copied into batch tensors of shape [N,W] (model input of rank 2, univariate only)
+ * or [N,W,C] (model input of rank 3), with at most 'chunk' windows per batch. When the model has a
+ * fixed batch dimension, every batch has exactly that many windows and the last one is padded with
+ * zeros. Each row of the output becomes the value of the output GTS at the tick of the last point
+ * of the matching window, an output of shape [N,K] with K > 1 produces K GTS.
+ */
+public class ONNXWINDOW extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  /**
+   * GTS or LIST of GTS to score
+   */
+  public static final String KEY_GTS = "gts";
+
+  /**
+   * Number of points of a window
+   */
+  public static final String KEY_WINDOW = "window";
+
+  /**
+   * Number of points between the starts of consecutive windows, defaults to 1
+   */
+  public static final String KEY_STRIDE = "stride";
+
+  /**
+   * Maximum number of windows per inference, defaults to ONNXWarpScriptExtension.CONF_BATCH_MAXSIZE
+   */
+  public static final String KEY_CHUNK = "chunk";
+
+  /**
+   * Name of the model input fed with the windows, defaults to the single input of the model
+   */
+  public static final String KEY_INPUT = "input";
+
+  /**
+   * Name of the model output converted to GTS, defaults to the first output of the model
+   */
+  public static final String KEY_OUTPUT = "output";
+
+  public static final String KEY_FILL = ONNXTENSOR.KEY_FILL;
+  public static final String KEY_FILL_VALUE = ONNXTENSOR.KEY_FILL_VALUE;
+
+  public ONNXWINDOW(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+
+    Object top = stack.pop();
+
+    if (!(top instanceof Map)) {
+      throw new WarpScriptException(getName() + " expects a parameter MAP.");
+    }
+
+    Map<Object,Object> params = (Map<Object,Object>) top;
+
+    top = stack.pop();
+
+    if (!(top instanceof OrtSession)) {
+      throw new WarpScriptException(getName() + " operates on an ONNX session.");
+    }
+
+    OrtSession session = (OrtSession) top;
+    ONNXScope scope = ONNXScope.check(getName(), stack, session);
+    ONNXMetrics metrics = scope.getMetrics(session);
+    long timeout = ONNXWatchdog.getTimeout(getName(), params);
+
+    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
+
+    if (params.get(KEY_GTS) instanceof GeoTimeSerie) {
+      series.add((GeoTimeSerie) params.get(KEY_GTS));
+    } else if (params.get(KEY_GTS) instanceof List && !((List) params.get(KEY_GTS)).isEmpty()) {
+      for (Object elt: (List) params.get(KEY_GTS)) {
+        if (!(elt instanceof GeoTimeSerie)) {
+          throw new WarpScriptException(getName() + " expects '" + KEY_GTS + "' to be a GTS or a LIST of GTS.");
+        }
+        series.add((GeoTimeSerie) elt);
+      }
+    } else {
+      throw new WarpScriptException(getName() + " expects '" + KEY_GTS + "' to be a GTS or a non empty LIST of GTS.");
+    }
+
+    int window = toInt(params, KEY_WINDOW, -1);
+    int stride = toInt(params, KEY_STRIDE, 1);
+    int chunk = toInt(params, KEY_CHUNK, ONNXWarpScriptExtension.getBatchMaxSize());
+
+    if (window < 1 || stride < 1 || chunk < 1) {
+      throw new WarpScriptException(getName() + " expects strictly positive '" + KEY_WINDOW + "', '" + KEY_STRIDE + "' and '" + KEY_CHUNK + "'.");
+    }
+
+    String fill = null == params.get(KEY_FILL) ? ONNXGTSUtils.FILL_NONE : String.valueOf(params.get(KEY_FILL));
+
+    if (!ONNXGTSUtils.isFill(fill)) {
+      throw new WarpScriptException(getName() + " invalid '" + KEY_FILL + "' policy '" + fill + "'.");
+    }
+
+    double fillValue = params.get(KEY_FILL_VALUE) instanceof Number ? ((Number) params.get(KEY_FILL_VALUE)).doubleValue() : 0.0D;
+
+    //
+    // Determine the input and output, and the layout of the windows
+    //
+
+    String input;
+    TensorInfo inputInfo;
+
+    try {
+      Map<String,NodeInfo> inputs = session.getInputInfo();
+
+      if (null != params.get(KEY_INPUT)) {
+        input = String.valueOf(params.get(KEY_INPUT));
+      } else if (1 == inputs.size()) {
+        input = inputs.keySet().iterator().next();
+      } else {
+        throw new WarpScriptException(getName() + " the model has several inputs, specify '" + KEY_INPUT + "'.");
+      }
+
+      if (null == inputs.get(input) || !(inputs.get(input).getInfo() instanceof TensorInfo)) {
+        throw new WarpScriptException(getName() + " unknown tensor input '" + input + "'.");
+      }
+
+      inputInfo = (TensorInfo) inputs.get(input).getInfo();
+    } catch (OrtException oe) {
+      throw new WarpScriptException(getName() + " unable to retrieve the session inputs.", oe);
+    }
+
+    String output = null != params.get(KEY_OUTPUT) ? String.valueOf(params.get(KEY_OUTPUT)) : session.getOutputNames().iterator().next();
+
+    if (!session.getOutputNames().contains(output)) {
+      throw new WarpScriptException(getName() + " unknown output '" + output + "'.");
+    }
+
+    long[] expected = inputInfo.getShape();
+    int channels = series.size();
+
+    if (2 == expected.length) {
+      if (1 != channels) {
+        throw new WarpScriptException(getName() + " input '" + input + "' has rank 2, only a single GTS can be scored.");
+      }
+    } else if (3 != expected.length) {
+      throw new WarpScriptException(getName() + " input '" + input + "' must have rank 2 [N,W] or 3 [N,W,C].");
+    }
+
+    if (expected[1] >= 0 && expected[1] != window) {
+      throw new WarpScriptException(getName() + " input '" + input + "' expects windows of " + expected[1] + " points.");
+    }
+    if (3 == expected.length && expected[2] >= 0 && expected[2] != channels) {
+      throw new WarpScriptException(getName() + " input '" + input + "' expects " + expected[2] + " GTS.");
+    }
+
+    // A fixed batch dimension sets the number of windows per inference, the last chunk is padded
+    boolean fixed = expected[0] > 0;
+
+    if (fixed) {
+      chunk = (int) expected[0];
+    }
+
+    ONNXGTSUtils.Aligned aligned = ONNXGTSUtils.align(series, fill, fillValue);
+
+    int steps = aligned.ticks.length;
+    int windows = steps < window ? 0 : (steps - window) / stride + 1;
+
+    //
+    // Score the windows chunk by chunk, so memory usage is bounded by the chunk size
+    //
+
+    List<GeoTimeSerie> results = null;
+
+    for (int first = 0; first < windows; first += chunk) {
+      int n = Math.min(chunk, windows - first);
+      // Padding rows are zeros and their outputs are ignored
+      int rows = fixed ? chunk : n;
+
+      long[] shape = 2 == expected.length ? new long[] { rows, window } : new long[] { rows, window, channels };
+
+      try {
+        ONNXTensorBuilder builder = new ONNXTensorBuilder(OnnxJavaType.UNKNOWN == inputInfo.type ? OnnxJavaType.FLOAT : inputInfo.type, shape);
+
+        int idx = 0;
+        for (int w = first; w < first + n; w++) {
+          int start = w * stride;
+          for (int t = start; t < start + window; t++) {
+            for (int c = 0; c < channels; c++) {
+              builder.set(idx++, aligned.columns[c][t]);
+            }
+          }
+        }
+
+        long start = System.nanoTime();
+
+        try (OnnxTensor tensor = builder.build(); ONNXWatchdog.Watch watch = ONNXWatchdog.watch(getName(), stack, timeout); Result result = watch.run(session, Collections.singletonMap(input, tensor), Collections.singleton(output), null)) {
+          if (null != metrics) {
+            metrics.record(ONNXMetrics.PHASE_RUN, start);
+          }
+
+          // The chunk and its output count against the budget of the scope until converted
+          scope.checkBudget(getName(), ONNXScope.sizeOf(tensor) + ONNXScope.sizeOf(result));
+
+          OnnxValue value = result.get(0);
+
+          if (!(value instanceof OnnxTensor)) {
+            throw new WarpScriptException(getName() + " output '" + output + "' is not a tensor.");
+          }
+
+          long[] oshape = ((OnnxTensor) value).getInfo().getShape();
+
+          if (0 == oshape.length || rows != oshape[0]) {
+            throw new WarpScriptException(getName() + " output '" + output + "' does not have one row per window.");
+          }
+
+          Object vector = ONNXUtils.fromONNXValue(value, output, ONNXUtils.FORMAT_VECTOR);
+          int size = vector instanceof double[] ? ((double[]) vector).length : ((long[]) vector).length;
+          int columns = size / rows;
+
+          if (null == results) {
+            results = ONNXGTSUtils.outputSeries(series.get(0), columns, windows);
+          }
+
+          for (int r = 0; r < n; r++) {
+            ONNXGTSUtils.addRow(results, aligned.ticks[(first + r) * stride + window - 1], vector, r);
+          }
+        }
+      } catch (OrtException oe) {
+        throw new WarpScriptException(getName() + " encountered an error while performing inference.", oe);
+      }
+    }
+
+    if (null == results) {
+      // Not enough points for a single window
+      stack.push(series.get(0).cloneEmpty());
+    } else {
+      stack.push(1 == results.size() ? results.get(0) : results);
+    }
+
+    return stack;
+  }
+
+  private int toInt(Map<Object,Object> params, String key, int def) throws WarpScriptException {
+    Object value = params.get(key);
+
+    if (null == value) {
+      return def;
+    } else if (value instanceof Long) {
+      return ((Long) value).intValue();
+    } else {
+      throw new WarpScriptException(getName() + " expects '" + key + "' to be a LONG.");
+    }
+  }
+}
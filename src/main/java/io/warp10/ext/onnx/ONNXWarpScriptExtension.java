@@ -16,35 +16,309 @@
 
 package io.warp10.ext.onnx;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtEnvironment.ThreadingOptions;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtLoggingLevel;
 import io.warp10.WarpConfig;
+import io.warp10.script.WarpScriptException;
 import io.warp10.warp.sdk.WarpScriptExtension;
 
 public class ONNXWarpScriptExtension extends WarpScriptExtension {
   
   public static final String CONF_MODEL_ROOT = "onnx.modelroot";
   public static final String CONF_CLASSPATH = "onnx.classpath";
+  public static final String CONF_CACHE_MAXSIZE = "onnx.cache.maxsize";
+  public static final String CONF_CACHE_TTL = "onnx.cache.ttl";
+  public static final String CONF_GLOBAL_INTRA_THREADS = "onnx.global.intra.threads";
+  public static final String CONF_GLOBAL_INTER_THREADS = "onnx.global.inter.threads";
+  public static final String CONF_GLOBAL_SPIN = "onnx.global.spin";
+  public static final String CONF_BATCH_MAXSIZE = "onnx.batch.maxsize";
+  public static final String CONF_MICROBATCH_MAXSIZE = "onnx.microbatch.maxsize";
+  public static final String CONF_MICROBATCH_WAIT = "onnx.microbatch.wait";
+  public static final String CONF_PARMAP_THREADS = "onnx.parmap.threads";
+
+  /**
+   * Set to true to reload the cached sessions of the models under the model root when their file changes
+   */
+  public static final String CONF_RELOAD = "onnx.reload";
+
+  /**
+   * Time in ms a model file must be left unchanged before being reloaded
+   */
+  public static final String CONF_RELOAD_DELAY = "onnx.reload.delay";
+
+  /**
+   * Number of warm-up inferences run on reloaded sessions before they replace the current ones
+   */
+  public static final String CONF_RELOAD_WARMUP = "onnx.reload.warmup";
+
+  /**
+   * Directory where the models optimized by ONNX Runtime are persisted, see ONNXOptimizer
+   */
+  public static final String CONF_OPTIMIZED_DIR = "onnx.optimized.dir";
+
+  /**
+   * Set to true to let ONNX and ONNX.OPTIMIZE calls persist the optimized versions of models given as
+   * BYTES, which they request with 'optimized.persist'. Only models from the model root or the
+   * classpath are persisted otherwise.
+   */
+  public static final String CONF_OPTIMIZED_BYTES = "onnx.optimized.bytes";
+
+  /**
+   * Period in ms at which model metrics are published to Sensision, 0 to disable
+   */
+  public static final String CONF_SENSISION_PERIOD = "onnx.sensision.period";
+
+  /**
+   * Maximum number of concurrent ONNX calls over all models, 0 for no limit
+   */
+  public static final String CONF_LIMIT_CONCURRENCY = "onnx.limit.concurrency";
+
+  /**
+   * Maximum number of concurrent ONNX calls per model, 0 for no limit
+   */
+  public static final String CONF_LIMIT_MODEL_CONCURRENCY = "onnx.limit.model.concurrency";
+
+  /**
+   * Maximum number of ONNX calls waiting for a slot, per model and globally
+   */
+  public static final String CONF_LIMIT_QUEUE = "onnx.limit.queue";
+
+  /**
+   * Maximum time in ms an ONNX call waits for a slot before failing
+   */
+  public static final String CONF_LIMIT_TIMEOUT = "onnx.limit.timeout";
+
+  /**
+   * Maximum number of bytes of native tensors alive at once during an ONNX call, 0 for no limit
+   */
+  public static final String CONF_LIMIT_NATIVE_BYTES = "onnx.limit.native.bytes";
+
+  /**
+   * Default maximum duration of an inference in ms, 0 for no limit
+   */
+  public static final String CONF_RUN_TIMEOUT = "onnx.run.timeout";
+
+  /**
+   * Period in ms at which the watchdog checks running inferences, see ONNXWatchdog
+   */
+  public static final String CONF_WATCHDOG_PERIOD = "onnx.watchdog.period";
+
+  /**
+   * Prefix of the configuration keys holding the default session options, see ONNXSessionOptions.KEYS
+   */
+  public static final String CONF_SESSION_OPTIONS_PREFIX = "onnx.";
+
+  private static final long DEFAULT_CACHE_MAXSIZE = 1024L * 1024L * 1024L;
+  private static final long DEFAULT_CACHE_TTL = 3600000L;
+  private static final int DEFAULT_BATCH_MAXSIZE = 256;
+  private static final int DEFAULT_MICROBATCH_MAXSIZE = 32;
+  private static final long DEFAULT_MICROBATCH_WAIT = 2L;
+  private static final long DEFAULT_SENSISION_PERIOD = 60000L;
+  private static final long DEFAULT_RELOAD_DELAY = 1000L;
+  private static final long DEFAULT_LIMIT_TIMEOUT = 10000L;
+  private static final long DEFAULT_WATCHDOG_PERIOD = 100L;
   
   private static final Map<String,Object> functions;
   
   private static final String modelRoot;
+
+  private static final String optimizedDir;
+
+  private static final boolean optimizedBytes;
   
   private static final boolean classPathEnabled;
   
+  private static final ONNXSessionCache sessionCache;
+  
+  private static final ONNXSessionOptions defaultSessionOptions;
+  
+  private static final OrtEnvironment env;
+  
+  private static final boolean globalThreadPools;
+  
+  private static final int batchMaxSize;
+  
+  private static final int microBatchMaxSize;
+  
+  private static final long microBatchWait;
+  
+  private static final int parMapThreads;
+
+  private static final int limitConcurrency;
+
+  private static final int limitModelConcurrency;
+
+  private static final int limitQueue;
+
+  private static final long limitTimeout;
+
+  private static final long limitNativeBytes;
+
+  private static final long runTimeout;
+
+  private static final long watchdogPeriod;
+  
+  private static ExecutorService parMapExecutor = null;
+
+  private static boolean preloaded = false;
+  
   static {
     modelRoot = WarpConfig.getProperty(CONF_MODEL_ROOT, null);
     classPathEnabled = "true".equals(WarpConfig.getProperty(CONF_CLASSPATH));
+    optimizedDir = WarpConfig.getProperty(CONF_OPTIMIZED_DIR, null);
+    optimizedBytes = "true".equals(WarpConfig.getProperty(CONF_OPTIMIZED_BYTES));
+
+    if (null != optimizedDir && !new File(optimizedDir).isDirectory() && !new File(optimizedDir).mkdirs()) {
+      throw new RuntimeException("Unable to create ONNX optimized model directory '" + optimizedDir + "'.");
+    }
+
+    //
+    // Create the environment, with global thread pools if configured. This must happen
+    // before any other call to OrtEnvironment.getEnvironment as the environment is a singleton.
+    //
+
+    String intra = WarpConfig.getProperty(CONF_GLOBAL_INTRA_THREADS);
+    String inter = WarpConfig.getProperty(CONF_GLOBAL_INTER_THREADS);
+
+    globalThreadPools = null != intra || null != inter;
+
+    try {
+      if (globalThreadPools) {
+        try (ThreadingOptions threading = new ThreadingOptions()) {
+          if (null != intra) {
+            threading.setGlobalIntraOpNumThreads(Integer.parseInt(intra.trim()));
+          }
+          if (null != inter) {
+            threading.setGlobalInterOpNumThreads(Integer.parseInt(inter.trim()));
+          }
+          // Spinning threads waste CPU when many requests share the pools
+          threading.setGlobalSpinControl("true".equals(WarpConfig.getProperty(CONF_GLOBAL_SPIN)));
+          env = OrtEnvironment.getEnvironment(OrtLoggingLevel.ORT_LOGGING_LEVEL_WARNING, OrtEnvironment.DEFAULT_NAME, threading);
+        }
+      } else {
+        env = OrtEnvironment.getEnvironment();
+      }
+      env.setTelemetry(false);
+    } catch (OrtException oe) {
+      throw new RuntimeException("Unable to initialize the ONNX Runtime environment.", oe);
+    }
+
+    sessionCache = new ONNXSessionCache(
+        Long.parseLong(WarpConfig.getProperty(CONF_CACHE_MAXSIZE, Long.toString(DEFAULT_CACHE_MAXSIZE))),
+        Long.parseLong(WarpConfig.getProperty(CONF_CACHE_TTL, Long.toString(DEFAULT_CACHE_TTL))));
+
+    if (null != modelRoot && "true".equals(WarpConfig.getProperty(CONF_RELOAD))) {
+      try {
+        new ONNXModelWatcher(modelRoot, sessionCache,
+            Long.parseLong(WarpConfig.getProperty(CONF_RELOAD_DELAY, Long.toString(DEFAULT_RELOAD_DELAY))),
+            Integer.parseInt(WarpConfig.getProperty(CONF_RELOAD_WARMUP, "0"))).start();
+      } catch (IOException ioe) {
+        throw new RuntimeException("Unable to watch ONNX model root '" + modelRoot + "'.", ioe);
+      }
+    }
+
+    batchMaxSize = Integer.parseInt(WarpConfig.getProperty(CONF_BATCH_MAXSIZE, Integer.toString(DEFAULT_BATCH_MAXSIZE)));
+    microBatchMaxSize = Integer.parseInt(WarpConfig.getProperty(CONF_MICROBATCH_MAXSIZE, Integer.toString(DEFAULT_MICROBATCH_MAXSIZE)));
+    microBatchWait = Long.parseLong(WarpConfig.getProperty(CONF_MICROBATCH_WAIT, Long.toString(DEFAULT_MICROBATCH_WAIT)));
+    parMapThreads = Integer.parseInt(WarpConfig.getProperty(CONF_PARMAP_THREADS, Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+    limitConcurrency = Integer.parseInt(WarpConfig.getProperty(CONF_LIMIT_CONCURRENCY, "0"));
+    limitModelConcurrency = Integer.parseInt(WarpConfig.getProperty(CONF_LIMIT_MODEL_CONCURRENCY, "0"));
+    limitQueue = Integer.parseInt(WarpConfig.getProperty(CONF_LIMIT_QUEUE, Integer.toString(Integer.MAX_VALUE)));
+    limitTimeout = Long.parseLong(WarpConfig.getProperty(CONF_LIMIT_TIMEOUT, Long.toString(DEFAULT_LIMIT_TIMEOUT)));
+    limitNativeBytes = Long.parseLong(WarpConfig.getProperty(CONF_LIMIT_NATIVE_BYTES, "0"));
+
+    runTimeout = Long.parseLong(WarpConfig.getProperty(CONF_RUN_TIMEOUT, "0"));
+    watchdogPeriod = Long.parseLong(WarpConfig.getProperty(CONF_WATCHDOG_PERIOD, Long.toString(DEFAULT_WATCHDOG_PERIOD)));
+
+    long sensisionPeriod = Long.parseLong(WarpConfig.getProperty(CONF_SENSISION_PERIOD, Long.toString(DEFAULT_SENSISION_PERIOD)));
+
+    if (sensisionPeriod > 0L) {
+      ScheduledExecutorService publisher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r);
+          t.setName("[ONNX Sensision Publisher]");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      publisher.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            ONNXMetrics.publish();
+          } catch (Throwable t) {
+            // Do not kill the publisher
+          }
+        }
+      }, sensisionPeriod, sensisionPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    Map<Object,Object> options = new HashMap<Object,Object>();
+    // Sessions use the global thread pools when they exist, unless configured otherwise
+    options.put(ONNXSessionOptions.GLOBAL_THREADS, globalThreadPools);
+    for (String key: ONNXSessionOptions.KEYS) {
+      String value = WarpConfig.getProperty(CONF_SESSION_OPTIONS_PREFIX + key);
+      if (null != value) {
+        options.put(key, value.trim());
+      }
+    }
+
+    try {
+      defaultSessionOptions = new ONNXSessionOptions(null, options);
+    } catch (WarpScriptException wse) {
+      throw new RuntimeException("Invalid ONNX session options configuration.", wse);
+    }
 
     functions = new HashMap<String,Object>();
     
     functions.put("ONNX", new ONNX("ONNX"));
     functions.put("ONNX.RUN", new ONNXRUN("ONNX.RUN"));
+    functions.put("ONNX.BATCHRUN", new ONNXBATCHRUN("ONNX.BATCHRUN"));
+    functions.put("ONNX.PARMAP", new ONNXPARMAP("ONNX.PARMAP"));
+    functions.put("ONNX.WINDOW", new ONNXWINDOW("ONNX.WINDOW"));
+    functions.put("ONNX.STREAM", new ONNXSTREAM("ONNX.STREAM"));
+    functions.put("ONNX.OPTIMIZE", new ONNXOPTIMIZE("ONNX.OPTIMIZE"));
+    functions.put("ONNX.PIPELINE", new ONNXPIPELINE("ONNX.PIPELINE"));
     functions.put("ONNX.TENSOR", new ONNXTENSOR("ONNX.TENSOR"));
+    functions.put("ONNX.RESHAPE", new ONNXRESHAPE("ONNX.RESHAPE"));
+    functions.put("ONNX.SLICE", new ONNXSLICE("ONNX.SLICE"));
+    functions.put("ONNX.CONCAT", new ONNXCONCAT("ONNX.CONCAT"));
     functions.put("ONNX.INFO", new ONNXINFO("ONNX.INFO"));
+    functions.put("ONNX.STATS", new ONNXSTATS("ONNX.STATS"));
+    functions.put("ONNX.CLOSE", new ONNXCLOSE("ONNX.CLOSE"));
   }
   
+  public ONNXWarpScriptExtension() {
+    preload();
+  }
+
+  /**
+   * Preload the configured models once. This is not done by the static initializer as the
+   * loading threads need the initialized class.
+   */
+  private static synchronized void preload() {
+    if (preloaded) {
+      return;
+    }
+    preloaded = true;
+    ONNXPreloader.preload();
+  }
+
   @Override
   public Map<String, Object> getFunctions() {
     return functions;
@@ -54,7 +328,103 @@ public class ONNXWarpScriptExtension extends WarpScriptExtension {
     return modelRoot;
   }
   
+  public static String getOptimizedDir() {
+    return optimizedDir;
+  }
+
+  public static boolean isOptimizedBytesEnabled() {
+    return optimizedBytes;
+  }
+  
   public static boolean isClassPathEnabled() {
     return classPathEnabled;
   }
+  
+  public static ONNXSessionCache getSessionCache() {
+    return sessionCache;
+  }
+  
+  public static ONNXSessionOptions getDefaultSessionOptions() {
+    return defaultSessionOptions;
+  }
+  
+  public static OrtEnvironment getEnvironment() {
+    return env;
+  }
+  
+  public static boolean hasGlobalThreadPools() {
+    return globalThreadPools;
+  }
+  
+  public static int getBatchMaxSize() {
+    return batchMaxSize;
+  }
+  
+  public static int getMicroBatchMaxSize() {
+    return microBatchMaxSize;
+  }
+  
+  /**
+   * Default maximum wait of micro batches, in ms
+   */
+  public static long getMicroBatchWait() {
+    return microBatchWait;
+  }
+  
+  public static int getParMapThreads() {
+    return parMapThreads;
+  }
+  
+  public static int getLimitConcurrency() {
+    return limitConcurrency;
+  }
+  
+  public static int getLimitModelConcurrency() {
+    return limitModelConcurrency;
+  }
+  
+  public static int getLimitQueue() {
+    return limitQueue;
+  }
+  
+  /**
+   * Maximum wait for a slot, in ms
+   */
+  public static long getLimitTimeout() {
+    return limitTimeout;
+  }
+  
+  public static long getLimitNativeBytes() {
+    return limitNativeBytes;
+  }
+  
+  /**
+   * Default maximum duration of an inference, in ms
+   */
+  public static long getRunTimeout() {
+    return runTimeout;
+  }
+  
+  public static long getWatchdogPeriod() {
+    return watchdogPeriod;
+  }
+  
+  /**
+   * Pool shared by all ONNX.PARMAP calls, created on first use
+   */
+  public static synchronized ExecutorService getParMapExecutor() {
+    if (null == parMapExecutor) {
+      parMapExecutor = Executors.newFixedThreadPool(parMapThreads, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r);
+          t.setName("[ONNX.PARMAP #" + count.incrementAndGet() + "]");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return parMapExecutor;
+  }
 }
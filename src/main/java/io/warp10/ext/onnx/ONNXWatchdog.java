@@ -0,0 +1,284 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ai.onnxruntime.OnnxTensorLike;
+import ai.onnxruntime.OnnxValue;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.OrtSession.Result;
+import ai.onnxruntime.OrtSession.RunOptions;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStack.Signal;
+
+/**
+ * Terminates the inferences whose stack was stopped or killed, whose thread was interrupted or
+ * which ran past their deadline.
+ *
+ * Each run is given its own RunOptions, a single thread periodically checks the running inferences
+ * and sets the terminate flag of those which should not go on. ONNX Runtime checks the flag
+ * between nodes, the run then fails and the calling function throws a WarpScriptException.
+ *
+ * The stack of a run is executed by another thread, the watchdog only reads its pending signal and
+ * never handles it, the executing thread handles it once the run is over. The signal is not exposed
+ * by WarpScriptStack, it is read from the field of the stack holding it, if the stack has none only
+ * deadlines and interrupts terminate runs.
+ */
+public class ONNXWatchdog {
+
+  public static final String STATS_TERMINATED = "runs.terminated";
+
+  private static final Set<Watch> watches = Collections.newSetFromMap(new ConcurrentHashMap<Watch,Boolean>());
+
+  private static final AtomicLong terminated = new AtomicLong(0L);
+
+  private static ScheduledExecutorService executor = null;
+
+  /**
+   * A watched inference, MUST be closed once the run is over
+   */
+  public static class Watch implements AutoCloseable {
+    private final String function;
+    private final WarpScriptStack stack;
+    private final Thread thread;
+    private final long timeout;
+    private final long deadline;
+    private final RunOptions options;
+
+    private boolean closed = false;
+
+    /**
+     * Why the run was terminated, null if it was not
+     */
+    private volatile String reason = null;
+
+    private Watch(String function, WarpScriptStack stack, long timeout) throws OrtException {
+      this.function = function;
+      this.stack = stack;
+      this.thread = Thread.currentThread();
+      this.timeout = timeout;
+      this.deadline = timeout > 0L ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+      this.options = new RunOptions();
+    }
+
+    /**
+     * Run the session with the RunOptions of the watch
+     *
+     * @param outputs Outputs to compute, null for all outputs
+     * @param pinned Preallocated outputs, may be null
+     */
+    public Result run(OrtSession session, Map<String,? extends OnnxTensorLike> inputs, Set<String> outputs, Map<String,? extends OnnxValue> pinned) throws WarpScriptException, OrtException {
+      try {
+        return session.run(inputs, null == outputs ? session.getOutputNames() : outputs, null == pinned ? Collections.<String,OnnxValue>emptyMap() : pinned, options);
+      } catch (OrtException oe) {
+        if (null != reason) {
+          throw new WarpScriptException(function + " inference " + reason + ".");
+        }
+        throw oe;
+      }
+    }
+
+    private synchronized void check(long now) {
+      if (closed || null != reason) {
+        return;
+      }
+
+      String reason = null;
+
+      if (now > deadline) {
+        reason = "timed out after " + timeout + " ms";
+      } else if (thread.isInterrupted()) {
+        reason = "interrupted";
+      } else {
+        Signal signal = getSignal(stack);
+        if (Signal.STOP == signal) {
+          reason = "stopped";
+        } else if (null != signal) {
+          reason = "killed";
+        }
+      }
+
+      if (null == reason) {
+        return;
+      }
+
+      try {
+        options.setTerminate(true);
+        this.reason = reason;
+        terminated.incrementAndGet();
+      } catch (OrtException oe) {
+        // The run will complete
+      }
+    }
+
+    @Override
+    public void close() {
+      watches.remove(this);
+
+      // The watchdog must not use the options once they are closed
+      synchronized(this) {
+        closed = true;
+        options.close();
+      }
+    }
+  }
+
+  /**
+   * Fields of the stack classes holding their pending signal and, if any, the flag telling whether
+   * it is pending, an empty array if the class has no such field
+   */
+  private static final Map<Class<?>,Field[]> signalFields = new ConcurrentHashMap<Class<?>,Field[]>();
+
+  private static final Field[] NO_FIELDS = new Field[0];
+
+  /**
+   * Read the pending signal of a stack without handling it, null if none or if it cannot be read
+   */
+  static Signal getSignal(WarpScriptStack stack) {
+    Field[] fields = signalFields.get(stack.getClass());
+
+    if (null == fields) {
+      fields = lookupSignalFields(stack.getClass());
+      signalFields.put(stack.getClass(), fields);
+    }
+
+    if (0 == fields.length) {
+      return null;
+    }
+
+    try {
+      if (null != fields[1] && !fields[1].getBoolean(stack)) {
+        return null;
+      }
+      return (Signal) fields[0].get(stack);
+    } catch (IllegalAccessException iae) {
+      return null;
+    }
+  }
+
+  private static Field[] lookupSignalFields(Class<?> clazz) {
+    for (Class<?> c = clazz; null != c; c = c.getSuperclass()) {
+      Field signal = null;
+      Field signaled = null;
+
+      for (Field field: c.getDeclaredFields()) {
+        if (Signal.class == field.getType()) {
+          signal = field;
+        } else if (boolean.class == field.getType() && "signaled".equals(field.getName())) {
+          signaled = field;
+        }
+      }
+
+      if (null == signal) {
+        continue;
+      }
+
+      try {
+        signal.setAccessible(true);
+        if (null != signaled) {
+          signaled.setAccessible(true);
+        }
+      } catch (RuntimeException re) {
+        return NO_FIELDS;
+      }
+
+      return new Field[] { signal, signaled };
+    }
+
+    return NO_FIELDS;
+  }
+
+  /**
+   * Watch an inference run from the current thread
+   *
+   * @param function Name of the calling function, used in error messages
+   * @param timeout Maximum duration of the run in ms, 0 for no limit
+   */
+  public static Watch watch(String function, WarpScriptStack stack, long timeout) throws OrtException {
+    start();
+    Watch watch = new Watch(function, stack, timeout);
+    watches.add(watch);
+    return watch;
+  }
+
+  /**
+   * Return the run timeout from the parameter MAP, which can only lower the configured one
+   */
+  public static long getTimeout(String function, Map<Object,Object> params) throws WarpScriptException {
+    long timeout = ONNXWarpScriptExtension.getRunTimeout();
+
+    Object value = null == params ? null : params.get(ONNXRUN.KEY_TIMEOUT);
+
+    if (null == value) {
+      return timeout;
+    }
+
+    if (!(value instanceof Long) || (Long) value <= 0L) {
+      throw new WarpScriptException(function + " expects '" + ONNXRUN.KEY_TIMEOUT + "' to be a strictly positive LONG.");
+    }
+
+    return timeout > 0L ? Math.min(timeout, (Long) value) : (Long) value;
+  }
+
+  private static synchronized void start() {
+    if (null != executor) {
+      return;
+    }
+
+    long period = ONNXWarpScriptExtension.getWatchdogPeriod();
+
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r);
+        t.setName("[ONNX Watchdog]");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+    executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        long now = System.currentTimeMillis();
+        for (Watch watch: watches) {
+          try {
+            watch.check(now);
+          } catch (Throwable t) {
+            // Do not kill the watchdog
+          }
+        }
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  public static long getTerminated() {
+    return terminated.get();
+  }
+}
@@ -0,0 +1,84 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import io.warp10.script.WarpScriptException;
+
+public class ONNXBindingPlanTest {
+
+  private static long[] resolve(long[] expected, long[] natural, long count) throws WarpScriptException {
+    return ONNXBindingPlan.resolve("TEST", "X", expected, natural, count);
+  }
+
+  @Test
+  public void testNaturalShape() throws Exception {
+    assertArrayEquals(new long[] { 2, 4 }, resolve(new long[] { -1, 4 }, new long[] { 2, 4 }, 8));
+    assertArrayEquals(new long[] { 2, 3, 1 }, resolve(new long[] { -1, -1, 1 }, new long[] { 2, 3, 1 }, 6));
+  }
+
+  @Test
+  public void testBatchDimensionAdded() throws Exception {
+    assertArrayEquals(new long[] { 1, 4 }, resolve(new long[] { -1, 4 }, new long[] { 4 }, 4));
+    assertArrayEquals(new long[] { 1, 2, 3 }, resolve(new long[] { 1, -1, 3 }, new long[] { 2, 3 }, 6));
+  }
+
+  @Test
+  public void testBatchDimensionRemoved() throws Exception {
+    assertArrayEquals(new long[] { 4 }, resolve(new long[] { 4 }, new long[] { 1, 4 }, 4));
+    assertArrayEquals(new long[] { 2, 3 }, resolve(new long[] { -1, 3 }, new long[] { 1, 2, 3 }, 6));
+  }
+
+  @Test
+  public void testSingleSymbolicDimension() throws Exception {
+    // The natural shape does not fit, the symbolic dimension is resolved from the number of elements
+    assertArrayEquals(new long[] { 2, 3 }, resolve(new long[] { -1, 3 }, new long[] { 6 }, 6));
+    assertArrayEquals(new long[] { 2, 3 }, resolve(new long[] { -1, 3 }, null, 6));
+    assertArrayEquals(new long[] { 2, 5, 3 }, resolve(new long[] { 2, -1, 3 }, null, 30));
+  }
+
+  @Test
+  public void testLeadingSymbolicDimension() throws Exception {
+    // With other symbolic dimensions, the leading one defaults to 1
+    assertArrayEquals(new long[] { 1, 3, 2 }, resolve(new long[] { -1, -1, 2 }, new long[] { 6 }, 6));
+  }
+
+  @Test
+  public void testAmbiguousShapeRejected() throws Exception {
+    assertRejected(new long[] { -1, -1, -1 }, null, 3);
+    assertRejected(new long[] { 2, -1, -1 }, new long[] { 12 }, 12);
+  }
+
+  @Test
+  public void testIncompatibleCountRejected() throws Exception {
+    assertRejected(new long[] { -1, 4 }, null, 6);
+    assertRejected(new long[] { 2, 3 }, new long[] { 3, 2 }, 5);
+  }
+
+  private static void assertRejected(long[] expected, long[] natural, long count) {
+    try {
+      resolve(expected, natural, count);
+      fail("Shape should have been rejected.");
+    } catch (WarpScriptException wse) {
+      // Expected
+    }
+  }
+}
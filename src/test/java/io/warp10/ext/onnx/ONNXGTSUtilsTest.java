@@ -0,0 +1,100 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.WarpScriptException;
+
+public class ONNXGTSUtilsTest {
+
+  @BeforeClass
+  public static void init() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+  }
+
+  private static GeoTimeSerie gts(long[] ticks, double[] values) {
+    GeoTimeSerie gts = new GeoTimeSerie();
+    for (int i = 0; i < ticks.length; i++) {
+      GTSHelper.setValue(gts, ticks[i], values[i]);
+    }
+    return gts;
+  }
+
+  private static ONNXGTSUtils.Aligned align(String fill) throws WarpScriptException {
+    GeoTimeSerie a = gts(new long[] { 10L, 30L }, new double[] { 1.0D, 3.0D });
+    GeoTimeSerie b = gts(new long[] { 20L, 30L }, new double[] { 20.0D, 30.0D });
+    return ONNXGTSUtils.align(Arrays.asList(a, b), fill, -1.0D);
+  }
+
+  @Test
+  public void testFillPrevious() throws Exception {
+    ONNXGTSUtils.Aligned aligned = align(ONNXGTSUtils.FILL_PREVIOUS);
+    assertArrayEquals(new long[] { 10L, 20L, 30L }, aligned.ticks);
+    assertArrayEquals(new double[] { 1.0D, 1.0D, 3.0D }, aligned.columns[0], 0.0D);
+    // Leading gaps take the first value
+    assertArrayEquals(new double[] { 20.0D, 20.0D, 30.0D }, aligned.columns[1], 0.0D);
+  }
+
+  @Test
+  public void testFillNext() throws Exception {
+    ONNXGTSUtils.Aligned aligned = align(ONNXGTSUtils.FILL_NEXT);
+    assertArrayEquals(new long[] { 10L, 20L, 30L }, aligned.ticks);
+    assertArrayEquals(new double[] { 1.0D, 3.0D, 3.0D }, aligned.columns[0], 0.0D);
+    assertArrayEquals(new double[] { 20.0D, 20.0D, 30.0D }, aligned.columns[1], 0.0D);
+  }
+
+  @Test
+  public void testFillValue() throws Exception {
+    ONNXGTSUtils.Aligned aligned = align(ONNXGTSUtils.FILL_VALUE);
+    assertArrayEquals(new long[] { 10L, 20L, 30L }, aligned.ticks);
+    assertArrayEquals(new double[] { 1.0D, -1.0D, 3.0D }, aligned.columns[0], 0.0D);
+    assertArrayEquals(new double[] { -1.0D, 20.0D, 30.0D }, aligned.columns[1], 0.0D);
+  }
+
+  @Test
+  public void testFillNoneRejected() throws Exception {
+    try {
+      align(ONNXGTSUtils.FILL_NONE);
+      fail("Series with different ticks should not be aligned without a fill policy.");
+    } catch (WarpScriptException wse) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testUnsortedSeriesLeftUntouched() throws Exception {
+    GeoTimeSerie gts = gts(new long[] { 30L, 10L, 20L }, new double[] { 3.0D, 1.0D, 2.0D });
+
+    ONNXGTSUtils.Aligned aligned = ONNXGTSUtils.align(Arrays.asList(gts), ONNXGTSUtils.FILL_NONE, 0.0D);
+
+    assertArrayEquals(new long[] { 10L, 20L, 30L }, aligned.ticks);
+    assertArrayEquals(new double[] { 1.0D, 2.0D, 3.0D }, aligned.columns[0], 0.0D);
+    assertEquals(30L, GTSHelper.tickAtIndex(gts, 0));
+  }
+}
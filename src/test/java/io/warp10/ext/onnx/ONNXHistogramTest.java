@@ -0,0 +1,55 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ONNXHistogramTest {
+
+  @Test
+  public void testPercentileError() {
+    for (long value: new long[] { 1L, 31L, 32L, 1000L, 123456L, 987654321L, Long.MAX_VALUE / 3 }) {
+      ONNXHistogram histogram = new ONNXHistogram();
+      // A larger value so the estimate is not capped by the maximum
+      histogram.record(value);
+      histogram.record(Long.MAX_VALUE / 2);
+
+      long estimate = histogram.percentile(50.0D);
+
+      assertTrue(value + " estimated as " + estimate, estimate >= value);
+      assertTrue(value + " estimated as " + estimate, estimate - value <= value / 32);
+    }
+  }
+
+  @Test
+  public void testPercentiles() {
+    ONNXHistogram histogram = new ONNXHistogram();
+
+    for (long i = 1L; i <= 1000L; i++) {
+      histogram.record(i * 1000L);
+    }
+
+    assertEquals(1000L, histogram.getCount());
+    assertEquals(1000000L, histogram.getMax());
+    assertEquals(500000.0D, histogram.percentile(50.0D), 500000.0D / 32.0D);
+    assertEquals(990000.0D, histogram.percentile(99.0D), 990000.0D / 32.0D);
+    assertEquals(1000000L, histogram.percentile(100.0D));
+  }
+}
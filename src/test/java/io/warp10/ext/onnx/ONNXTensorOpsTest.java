@@ -0,0 +1,123 @@
+//
+//   Copyright 2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.onnx;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import io.warp10.WarpConfig;
+import io.warp10.script.WarpScriptException;
+
+public class ONNXTensorOpsTest {
+
+  @BeforeClass
+  public static void init() throws Exception {
+    // The extension reads its configuration when it creates the ONNX Runtime environment
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+  }
+
+  private static OnnxTensor tensor(long[] shape, float... values) throws Exception {
+    ONNXTensorBuilder builder = new ONNXTensorBuilder(OnnxJavaType.FLOAT, shape);
+    for (int i = 0; i < values.length; i++) {
+      builder.set(i, (double) values[i]);
+    }
+    return builder.build();
+  }
+
+  private static float[] values(OnnxTensor tensor) {
+    FloatBuffer buffer = ONNXTensorOps.content(tensor).asFloatBuffer();
+    float[] values = new float[buffer.remaining()];
+    buffer.get(values);
+    return values;
+  }
+
+  @Test
+  public void testSliceNegativeIndices() throws Exception {
+    try (OnnxTensor t = tensor(new long[] { 3, 4 }, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11)) {
+      try (OnnxTensor s = ONNXTensorOps.slice(t, 1, -3, -1)) {
+        assertArrayEquals(new long[] { 3, 2 }, s.getInfo().getShape());
+        assertArrayEquals(new float[] { 1, 2, 5, 6, 9, 10 }, values(s), 0.0F);
+      }
+      try (OnnxTensor s = ONNXTensorOps.slice(t, 0, -1, 3)) {
+        assertArrayEquals(new long[] { 1, 4 }, s.getInfo().getShape());
+        assertArrayEquals(new float[] { 8, 9, 10, 11 }, values(s), 0.0F);
+      }
+    }
+  }
+
+  @Test
+  public void testInvalidSliceRejected() throws Exception {
+    try (OnnxTensor t = tensor(new long[] { 3, 4 }, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11)) {
+      assertRejected(t, 0, 2, 1);
+      assertRejected(t, 1, 0, 5);
+      assertRejected(t, 2, 0, 1);
+    }
+  }
+
+  @Test
+  public void testConcat() throws Exception {
+    try (OnnxTensor a = tensor(new long[] { 2, 2 }, 0, 1, 2, 3); OnnxTensor b = tensor(new long[] { 2, 1 }, 4, 5)) {
+      try (OnnxTensor c = ONNXTensorOps.concat(Arrays.asList(a, b), 1, null)) {
+        assertArrayEquals(new long[] { 2, 3 }, c.getInfo().getShape());
+        assertArrayEquals(new float[] { 0, 1, 4, 2, 3, 5 }, values(c), 0.0F);
+      }
+    }
+  }
+
+  @Test
+  public void testConcatPadding() throws Exception {
+    try (OnnxTensor a = tensor(new long[] { 1, 2 }, 0, 1); OnnxTensor b = tensor(new long[] { 1, 3 }, 10, 11, 12)) {
+      try (OnnxTensor c = ONNXTensorOps.concat(Arrays.asList(a, b), 0, -1.0D)) {
+        assertArrayEquals(new long[] { 2, 3 }, c.getInfo().getShape());
+        assertArrayEquals(new float[] { 0, 1, -1, 10, 11, 12 }, values(c), 0.0F);
+      }
+
+      try {
+        ONNXTensorOps.concat(Arrays.asList(a, b), 0, null).close();
+        fail("Tensors of different shapes should not be concatenated without padding.");
+      } catch (WarpScriptException wse) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public void testReshape() throws Exception {
+    try (OnnxTensor t = tensor(new long[] { 2, 3 }, 0, 1, 2, 3, 4, 5); OnnxTensor r = ONNXTensorOps.reshape(t, new long[] { 3, -1 })) {
+      assertArrayEquals(new long[] { 3, 2 }, r.getInfo().getShape());
+      assertArrayEquals(values(t), values(r), 0.0F);
+    }
+  }
+
+  private static void assertRejected(OnnxTensor tensor, int axis, long start, long end) throws Exception {
+    try {
+      ONNXTensorOps.slice(tensor, axis, start, end).close();
+      fail("Slice should have been rejected.");
+    } catch (WarpScriptException wse) {
+      // Expected
+    }
+  }
+}